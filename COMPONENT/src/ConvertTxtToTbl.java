@@ -3,9 +3,13 @@
   attributes of the relation. each subsequent line represents 1
   tuple of the relation. also assume that the fields of each line
   is delimited by tabs ("\t")
+
+  if a page size is given, the table is written in the binary page
+  format of PageFileWriter instead of as serialized Tuple objects
 */
 
 import qp.utils.Attribute;
+import qp.utils.PageFileWriter;
 import qp.utils.Schema;
 import qp.utils.Tuple;
 
@@ -17,21 +21,13 @@ public class ConvertTxtToTbl {
 
     public static void main(String[] args) throws IOException {
         // check the arguments
-        if (args.length != 1) {
-            System.out.println("usage: java ConvertTxtToTbl <tablename> \n creats <tablename>.tbl files");
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java ConvertTxtToTbl <tablename> [<pagesize>] \n creats <tablename>.tbl files");
             System.exit(1);
         }
         String tblname = args[0];
         String mdfile = tblname + ".md";
-        String tblfile = tblname + ".tbl";
-
-        /** open the input and output streams **/
-        BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
-        ObjectOutputStream outtbl = new ObjectOutputStream(new FileOutputStream(tblfile));
 
-        /** First Line is METADATA **/
-        int linenum = 0;
-        String line;
         Schema schema = null;
         try {
             ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
@@ -41,35 +37,73 @@ public class ConvertTxtToTbl {
             System.exit(1);
         }
 
+        if (args.length == 2) {
+            writePageFile(tblname, schema, Integer.parseInt(args[1]));
+            return;
+        }
+
+        String tblfile = tblname + ".tbl";
+
+        /** open the input and output streams **/
+        BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
+        ObjectOutputStream outtbl = new ObjectOutputStream(new FileOutputStream(tblfile));
+
+        /** First Line is METADATA **/
+        int linenum = 0;
+        String line;
+
         boolean flag = false;
-        StringTokenizer tokenizer;
         while ((line = in.readLine()) != null) {
             linenum++;
-            tokenizer = new StringTokenizer(line);
-
-            ArrayList<Object> data = new ArrayList<>();
-            int attrIndex = 0;
-
-            while (tokenizer.hasMoreElements()) {
-                String dataElement = tokenizer.nextToken();
-                int datatype = schema.typeOf(attrIndex);
-                if (datatype == Attribute.INT) {
-                    data.add(Integer.valueOf(dataElement));
-                } else if (datatype == Attribute.REAL) {
-                    data.add(Float.valueOf(dataElement));
-                } else if (datatype == Attribute.STRING) {
-                    data.add(dataElement);
-                } else {
-                    System.err.println("Invalid data type");
-                    System.exit(1);
-                }
-                attrIndex++;
-            }
-            Tuple tuple = new Tuple(data);
+            Tuple tuple = parseTuple(line, schema);
             outtbl.writeObject(tuple);
         }
         outtbl.close();
         in.close();
     }
 
+    /**
+     * Writes <tablename>.txt into <tablename>.tbl as pages of pagesize bytes
+     **/
+    public static void writePageFile(String tblname, Schema schema, int pagesize) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
+        PageFileWriter outtbl = new PageFileWriter(tblname + ".tbl", schema, pagesize);
+        if (!outtbl.open()) {
+            System.exit(1);
+        }
+        String line;
+        while ((line = in.readLine()) != null) {
+            outtbl.next(parseTuple(line, schema));
+        }
+        outtbl.close();
+        in.close();
+    }
+
+    /**
+     * Converts one tab delimited line into a tuple of the schema
+     **/
+    static Tuple parseTuple(String line, Schema schema) {
+        StringTokenizer tokenizer = new StringTokenizer(line);
+
+        ArrayList<Object> data = new ArrayList<>();
+        int attrIndex = 0;
+
+        while (tokenizer.hasMoreElements()) {
+            String dataElement = tokenizer.nextToken();
+            int datatype = schema.typeOf(attrIndex);
+            if (datatype == Attribute.INT) {
+                data.add(Integer.valueOf(dataElement));
+            } else if (datatype == Attribute.REAL) {
+                data.add(Float.valueOf(dataElement));
+            } else if (datatype == Attribute.STRING) {
+                data.add(dataElement);
+            } else {
+                System.err.println("Invalid data type");
+                System.exit(1);
+            }
+            attrIndex++;
+        }
+        return new Tuple(data);
+    }
+
 }
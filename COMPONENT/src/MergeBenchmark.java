@@ -0,0 +1,119 @@
+/**
+ * Microbenchmark of the k-way merge of sorted runs held in memory:
+ * PriorityQueue of (tuple, run) pairs against the LoserTree
+ **/
+
+import qp.utils.LoserTree;
+import qp.utils.Tuple;
+import qp.utils.TupleComparator;
+
+import java.util.*;
+
+public class MergeBenchmark {
+
+    static Tuple[][] runs;
+    static TupleComparator comparator;
+
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.out.println("Usage: java MergeBenchmark [<numtuples>] [<repeats>]");
+            System.exit(1);
+        }
+        int numtuples = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+        int repeats = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        ArrayList<Integer> compareIndex = new ArrayList<>();
+        compareIndex.add(0);
+        comparator = new TupleComparator(compareIndex, compareIndex);
+
+        System.out.println("fanin\tpq(ms)\tlosertree(ms)");
+        for (int fanin = 2; fanin <= 512; fanin *= 2) {
+            makeRuns(numtuples, fanin);
+            long pqTime = Long.MAX_VALUE;
+            long treeTime = Long.MAX_VALUE;
+            /** The best of the repeats, the first ones warm up the JIT **/
+            for (int r = 0; r < repeats; ++r) {
+                long start = System.nanoTime();
+                long pqSum = mergeWithQueue();
+                pqTime = Math.min(pqTime, System.nanoTime() - start);
+                start = System.nanoTime();
+                long treeSum = mergeWithLoserTree();
+                treeTime = Math.min(treeTime, System.nanoTime() - start);
+                if (pqSum != treeSum) {
+                    System.out.println("MergeBenchmark: merge results differ");
+                    System.exit(1);
+                }
+            }
+            System.out.printf("%d\t%.1f\t%.1f\n", fanin, pqTime / 1e6, treeTime / 1e6);
+        }
+    }
+
+    /** Sorted runs of random integer tuples **/
+    static void makeRuns(int numtuples, int fanin) {
+        Random random = new Random(fanin);
+        runs = new Tuple[fanin][];
+        for (int i = 0; i < fanin; ++i) {
+            int size = numtuples / fanin;
+            Tuple[] run = new Tuple[size];
+            int[] keys = new int[size];
+            for (int j = 0; j < size; ++j) {
+                keys[j] = random.nextInt();
+            }
+            Arrays.sort(keys);
+            for (int j = 0; j < size; ++j) {
+                ArrayList<Object> data = new ArrayList<>();
+                data.add(keys[j]);
+                data.add(j);
+                run[j] = new Tuple(data);
+            }
+            runs[i] = run;
+        }
+    }
+
+    /** Merge as ExternalSort did before: one new pair per tuple through a PriorityQueue **/
+    static long mergeWithQueue() {
+        class TupleIndexPair {
+            Tuple tuple;
+            int index;
+
+            TupleIndexPair(Tuple tuple, int index) {
+                this.tuple = tuple;
+                this.index = index;
+            }
+        }
+        int[] curs = new int[runs.length];
+        PriorityQueue<TupleIndexPair> pq = new PriorityQueue<>(runs.length, (o1, o2) -> comparator.compare(o1.tuple, o2.tuple));
+        for (int i = 0; i < runs.length; ++i) {
+            if (runs[i].length > 0) {
+                pq.add(new TupleIndexPair(runs[i][curs[i]++], i));
+            }
+        }
+        long checksum = 0;
+        long position = 0;
+        while (!pq.isEmpty()) {
+            TupleIndexPair pair = pq.poll();
+            checksum += pair.tuple.getInt(0) * ++position;
+            int i = pair.index;
+            if (curs[i] < runs[i].length) {
+                pq.add(new TupleIndexPair(runs[i][curs[i]++], i));
+            }
+        }
+        return checksum;
+    }
+
+    static long mergeWithLoserTree() {
+        final int[] curs = new int[runs.length];
+        LoserTree<Tuple> merger = new LoserTree<Tuple>(runs.length, comparator) {
+            protected Tuple nextFrom(int source) {
+                return (curs[source] < runs[source].length) ? runs[source][curs[source]++] : null;
+            }
+        };
+        long checksum = 0;
+        long position = 0;
+        Tuple tuple;
+        while ((tuple = merger.next()) != null) {
+            checksum += tuple.getInt(0) * ++position;
+        }
+        return checksum;
+    }
+}
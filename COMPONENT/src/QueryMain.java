@@ -19,9 +19,10 @@ public class QueryMain {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("usage: java QueryMain <queryfilename> <resultfile> <pagesize> <numbuffer>");
+            System.out.println("usage: java QueryMain <queryfilename> <resultfile> <pagesize> <numbuffer> [<continue> [readmode=stream|mmap] [sortruns=replacement|load] [sortthreads=<n>] [readahead=<pages>] [writebehind=<pages>]]");
             System.exit(1);
         }
+        setOptions(args);
 
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         Batch.setPageSize(getPageSize(args, in));
@@ -35,6 +36,31 @@ public class QueryMain {
         executeQuery(root, args[1]);
     }
 
+    /**
+     * Set the optional name=value settings given after the first five arguments
+     **/
+    private static void setOptions(String[] args) {
+        for (int i = 5; i < args.length; ++i) {
+            String[] option = args[i].split("=", 2);
+            if (option.length == 2 && option[0].equals("readmode") && ReadMode.parse(option[1]) >= 0) {
+                ReadMode.setMode(ReadMode.parse(option[1]));
+            } else if (option.length == 2 && option[0].equals("sortruns") && option[1].equals("replacement")) {
+                ExternalSort.setRunGeneration(ExternalSort.REPLACEMENT);
+            } else if (option.length == 2 && option[0].equals("sortruns") && option[1].equals("load")) {
+                ExternalSort.setRunGeneration(ExternalSort.LOADSORT);
+            } else if (option.length == 2 && option[0].equals("sortthreads") && option[1].matches("[1-9][0-9]*")) {
+                ExternalSort.setSortThreads(Integer.parseInt(option[1]));
+            } else if (option.length == 2 && option[0].equals("readahead") && option[1].matches("[0-9]+")) {
+                ReadAhead.setDepth(Integer.parseInt(option[1]));
+            } else if (option.length == 2 && option[0].equals("writebehind") && option[1].matches("[0-9]+")) {
+                WriteBehind.setDepth(Integer.parseInt(option[1]));
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+    }
+
     private static void checkPlanFeasibility(Operator operator) {
         int opType = operator.getOpType();
         checkOperatorFeasibility(operator);
@@ -57,6 +83,9 @@ public class QueryMain {
             case OpType.SORT:
                 checkPlanFeasibility(((OrderBy) operator).getBase());
                 break;
+            case OpType.AGGREGATE:
+                checkPlanFeasibility(((Aggregate) operator).getBase());
+                break;
             default:
                 break;
         }
@@ -125,7 +154,8 @@ public class QueryMain {
      **/
 
     private static void configureBufferManager(int numJoin, SQLQuery query, String[] args, BufferedReader in) {
-        boolean needsBuffer = numJoin != 0 || query.isDistinct() || query.getOrderByList().size() != 0;
+        boolean needsBuffer = numJoin != 0 || query.isDistinct() || query.getOrderByList().size() != 0
+                || query.getGroupByList().size() != 0;
         if (needsBuffer) {
             int numBuff = 1000;
             if (args.length < 4) {
@@ -18,8 +18,8 @@ public class RandomDB {
 
         RandomDB rdb = new RandomDB();
 
-        if (args.length != 2) {
-            System.out.println("Usage: java RandomDB <dbname> <numrecords> ");
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Usage: java RandomDB <dbname> <numrecords> [<pagesize>]");
             System.exit(1);
         }
         String tblname = args[0];
@@ -169,6 +169,11 @@ public class RandomDB {
             }
             outstat.close();
             in.close();
+
+            /** with a page size the table is also converted to the binary page format **/
+            if (args.length == 3) {
+                ConvertTxtToTbl.writePageFile(tblname, schema, Integer.parseInt(args[2]));
+            }
         } catch (IOException io) {
             System.out.println("error in IO ");
             System.exit(1);
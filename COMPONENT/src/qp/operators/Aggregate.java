@@ -0,0 +1,261 @@
+/**
+ * Grouping and aggregation of the result on the GROUP BY attributes
+ * The plan node only records the grouping, makeExecPlan replaces it
+ * by the operator that carries it out
+ *
+ * A partial aggregation pre-aggregates one input of a join on the
+ * attributes needed above it. An aggregate whose input already holds
+ * partial results of it merges them instead of aggregating raw values,
+ * an average merges the partial sums and counts of its attribute
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+
+public class Aggregate extends Operator {
+
+    Operator base;                     // Base table to aggregate
+    ArrayList<Attribute> groupbylist;  // Attributes to group by
+    ArrayList<Attribute> attrset;      // Output attributes, grouping attributes and aggregates
+    int aggregatetype;                 // AggregateType of the operator that carries out the aggregation
+    boolean partial;                   // Whether the node pre-aggregates an input of a join
+    int numBuff;                       // Number of buffers available to the operator
+
+    /**
+     * The following fields are required during execution
+     * * of the aggregation, see findIndices()
+     **/
+    int batchsize;                     // Number of tuples per outbatch
+    ArrayList<Integer> groupIndex;     // Index of the grouping attributes in the base schema
+    int[] colIndex;                    // Index in the base schema of the column of every output attribute
+    int[] colAgg;                      // Aggregate of every output attribute
+    int[] colType;                     // Type of the base column of every output attribute
+    int[] countIndex;                  // Index in the base schema of the partial counts of every output attribute, -1 for raw values
+    int[] plainIndex;                  // Index in the base schema of the output attributes without aggregate
+
+    public Aggregate(Operator base, ArrayList<Attribute> groupbylist, ArrayList<Attribute> attrset, int type) {
+        super(type);
+        this.base = base;
+        this.groupbylist = groupbylist;
+        this.attrset = attrset;
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public void setBase(Operator base) {
+        this.base = base;
+    }
+
+    public ArrayList<Attribute> getGroupByList() {
+        return groupbylist;
+    }
+
+    public ArrayList<Attribute> getAggAttr() {
+        return attrset;
+    }
+
+    public int getAggregateType() {
+        return aggregatetype;
+    }
+
+    public void setAggregateType(int type) {
+        this.aggregatetype = type;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    public int getNumBuff() {
+        return numBuff;
+    }
+
+    public void setNumBuff(int num) {
+        this.numBuff = num;
+    }
+
+    /**
+     * Finds the base columns of the grouping attributes and of the
+     * * output attributes, and sets the number of tuples per outbatch
+     * * The base column of an aggregate with partial results in the
+     * * base schema is the column of those results, even if the base
+     * * schema also holds the attribute itself as a grouping attribute
+     **/
+    protected void findIndices() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Math.max(1, Batch.getPageSize() / Math.max(1, tuplesize));
+
+        Schema baseSchema = base.getSchema();
+        groupIndex = new ArrayList<>();
+        for (Attribute attr : groupbylist) {
+            groupIndex.add(baseSchema.indexOf(attr));
+        }
+        colIndex = new int[attrset.size()];
+        colAgg = new int[attrset.size()];
+        colType = new int[attrset.size()];
+        countIndex = new int[attrset.size()];
+        int numPlain = 0;
+        for (int i = 0; i < colIndex.length; ++i) {
+            Attribute attr = attrset.get(i);
+            colAgg[i] = attr.getAggType();
+            countIndex[i] = -1;
+            if (colAgg[i] != Attribute.NONE && baseSchema.contains(attr)) {
+                colIndex[i] = baseSchema.indexOf(attr);
+                if (colAgg[i] == Attribute.COUNT) {
+                    countIndex[i] = colIndex[i];
+                }
+            } else if (colAgg[i] == Attribute.AVG && baseSchema.contains(partialOf(attr, Attribute.SUM))) {
+                colIndex[i] = baseSchema.indexOf(partialOf(attr, Attribute.SUM));
+                countIndex[i] = baseSchema.indexOf(partialOf(attr, Attribute.COUNT));
+            } else {
+                colIndex[i] = baseSchema.indexOf(attr.getBaseAttribute());
+            }
+            colType[i] = baseSchema.typeOf(colIndex[i]);
+            if (colAgg[i] == Attribute.NONE) {
+                numPlain++;
+            }
+        }
+        plainIndex = new int[numPlain];
+        for (int i = 0, j = 0; i < colIndex.length; ++i) {
+            if (colAgg[i] == Attribute.NONE) {
+                plainIndex[j++] = colIndex[i];
+            }
+        }
+    }
+
+    /**
+     * The given aggregate of the attribute of an aggregate
+     **/
+    public static Attribute partialOf(Attribute attr, int aggtype) {
+        Attribute partial = attr.getBaseAttribute();
+        partial.setAggType(aggtype);
+        return partial;
+    }
+
+    /**
+     * Starts a group with the given tuple
+     **/
+    Group newGroup(Tuple tuple) {
+        Group group = new Group(tuple.project(plainIndex), colIndex.length);
+        accumulate(group, tuple);
+        return group;
+    }
+
+    /**
+     * Adds the columns of the tuple to the running aggregates of the group,
+     * * columns without a value are ignored. A column of partial results
+     * * adds the number of values its partial count stands for
+     **/
+    void accumulate(Group group, Tuple tuple) {
+        for (int i = 0; i < colIndex.length; ++i) {
+            int index = colIndex[i];
+            int type = tuple.typeAt(index);
+            if (colAgg[i] == Attribute.NONE || type == Tuple.NULL) {
+                continue;
+            }
+            long seen = group.counts[i];
+            group.counts[i] += (countIndex[i] < 0) ? 1 : tuple.getInt(countIndex[i]);
+            if (colAgg[i] == Attribute.COUNT) {
+                continue;
+            }
+            if (type == Attribute.STRING) {
+                String value = tuple.getString(index);
+                if (seen == 0 || (colAgg[i] == Attribute.MAX) == (value.compareTo(group.strings[i]) > 0)) {
+                    group.strings[i] = value;
+                }
+                continue;
+            }
+            double value = (type == Attribute.INT) ? tuple.getInt(index) : tuple.getFloat(index);
+            switch (colAgg[i]) {
+                case Attribute.MAX:
+                    group.numbers[i] = (seen == 0) ? value : Math.max(group.numbers[i], value);
+                    break;
+                case Attribute.MIN:
+                    group.numbers[i] = (seen == 0) ? value : Math.min(group.numbers[i], value);
+                    break;
+                default:
+                    group.numbers[i] += value;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Output tuple of the group, an aggregate over no values is null
+     * * except for COUNT
+     **/
+    Tuple result(Group group) {
+        ArrayList<Object> data = new ArrayList<>(colIndex.length);
+        for (int i = 0, j = 0; i < colIndex.length; ++i) {
+            long count = group.counts[i];
+            switch (colAgg[i]) {
+                case Attribute.NONE:
+                    data.add(group.plain.dataAt(j++));
+                    break;
+                case Attribute.COUNT:
+                    data.add((int) count);
+                    break;
+                case Attribute.AVG:
+                    data.add(count == 0 ? null : (Object) (float) (group.numbers[i] / count));
+                    break;
+                default:
+                    if (count == 0) {
+                        data.add(null);
+                    } else if (colType[i] == Attribute.STRING) {
+                        data.add(group.strings[i]);
+                    } else if (colType[i] == Attribute.INT) {
+                        data.add((int) group.numbers[i]);
+                    } else {
+                        data.add((float) group.numbers[i]);
+                    }
+                    break;
+            }
+        }
+        return new Tuple(data);
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        ArrayList<Attribute> newgroupby = new ArrayList<>();
+        for (int i = 0; i < groupbylist.size(); ++i)
+            newgroupby.add((Attribute) groupbylist.get(i).clone());
+        ArrayList<Attribute> newattr = new ArrayList<>();
+        for (int i = 0; i < attrset.size(); ++i)
+            newattr.add((Attribute) attrset.get(i).clone());
+        Aggregate newagg = new Aggregate(newbase, newgroupby, newattr, optype);
+        newagg.setSchema(newbase.getSchema().subSchema(newattr));
+        newagg.setAggregateType(aggregatetype);
+        newagg.setPartial(partial);
+        newagg.setNumBuff(numBuff);
+        return newagg;
+    }
+
+    /**
+     * Running aggregates of one group
+     **/
+    static class Group {
+        final Tuple plain;       // Values of the output attributes without aggregate
+        final double[] numbers;  // Sum, or minimum or maximum, of every numeric aggregate
+        final String[] strings;  // Minimum or maximum of every STRING aggregate
+        final long[] counts;     // Number of values seen by every aggregate
+
+        Group(Tuple plain, int numCols) {
+            this.plain = plain;
+            this.numbers = new double[numCols];
+            this.strings = new String[numCols];
+            this.counts = new long[numCols];
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Enumeration of aggregation algorithm types
+ **/
+
+package qp.operators;
+
+public class AggregateType {
+
+    public static final int HASH = 0;
+    public static final int SORT = 1;
+    public static final int SCALAR = 2;
+
+    public static int numAggregateTypes() {
+        return 3;
+    }
+}
@@ -7,27 +7,37 @@ package qp.operators;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Condition;
+import qp.utils.ReadAhead;
+import qp.utils.RunStore;
 import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
+import qp.utils.WriteBehind;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class BlockNestedJoin extends Join {
 
+    static final String RIGHT_RUN = "right";  // Name of the right table in the spill file
+
     static int filenum = 0;         // To get unique filenum for this operation
     int batchsize;                  // Number of tuples per out batch
     ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
     ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
-    String rfname;                  // The file name where the right table is materialized
     Batch outbatch;                 // Buffer page for output
-    ArrayList<Tuple> leftbatches;   // Buffer pages for left input stream (since it is Block Nested Join)
-    Batch rightbatch;               // Buffer page for right input stream
-    ObjectInputStream in;           // File pointer to the right hand materialized file
+    HashMap<Object, ArrayList<Tuple>> blocktable;  // Tuples of the left block by join key, in block order
+    ArrayList<Tuple> matches;       // Left tuples with the same key as the current right tuple
+    Tuple righttuple;               // Right tuple being joined
+    ArrayList<Tuple> rightcache;    // Right table held in memory, null if it is in the spill file
+    RunStore rightstore;            // Spill file the right table is materialized in, if it does not fit
+    TupleReader rightreader;        // Scan of the spill file for the current block
+    int rightahead;                 // Pages of the right file read ahead, taken from the left block
 
     int blocksize;                  // Number of pages in a blocks
 
-    int lcurs;                      // Cursor for left side buffer
-    int rcurs;                      // Cursor for right side buffer
+    int lcurs;                      // Cursor in the left tuples matching the current right tuple
+    int rcurs;                      // Cursor in the cached right table
     boolean eosl;                   // Whether end of stream (left table) is reached
     boolean eosr;                   // Whether end of stream (right table) is reached
 
@@ -39,9 +49,17 @@ public class BlockNestedJoin extends Join {
         numBuff = jn.getNumBuff();
     }
 
+    /**
+     * Whether a right table of the given number of pages is held in memory,
+     * * it leaves a page for the left block, the left input and the output
+     **/
+    public static boolean cachesRight(long rightpages, long numBuff) {
+        return rightpages <= numBuff - 3;
+    }
+
     /**
      * During open finds the index of the join attributes
-     * * Materializes the right hand side into a file
+     * * Materializes the right hand side in memory or into a file
      * * Opens the connections
      **/
     public boolean open() {
@@ -49,12 +67,6 @@ public class BlockNestedJoin extends Join {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
 
-        /** block size for left batches in **/
-        blocksize = numBuff - 2; // Exclude input buffer for right relation and output buffer
-
-        /** ArrayList for blocksize leftnatches **/
-        leftbatches = new ArrayList<>();
-
         /** find indices attributes of join conditions **/
         leftindex = new ArrayList<>();
         rightindex = new ArrayList<>();
@@ -64,9 +76,10 @@ public class BlockNestedJoin extends Join {
             leftindex.add(left.getSchema().indexOf(leftattr));
             rightindex.add(right.getSchema().indexOf(rightattr));
         }
-        Batch rightpage;
 
         /** initialize the cursors of input buffers **/
+        blocktable = new HashMap<>();
+        matches = null;
         lcurs = 0;
         rcurs = 0;
         eosl = false;
@@ -80,26 +93,25 @@ public class BlockNestedJoin extends Join {
          **/
         if (!right.open()) {
             return false;
+        }
+        if (!materializeRight()) {
+            return false;
+        }
+        if (!right.close())
+            return false;
+
+        /** block size for left batches in **/
+        if (rightcache != null) {
+            /** The right table is never read again, the buffers it leaves go to the left block **/
+            int rightbatchsize = Math.max(1, Batch.getPageSize() / right.getSchema().getTupleSize());
+            int rightpages = (rightcache.size() + rightbatchsize - 1) / rightbatchsize;
+            rightahead = 0;
+            blocksize = Math.max(1, numBuff - 2 - rightpages);
         } else {
-            /** If the right operator is not a base table then
-             ** Materialize the intermediate result from right
-             ** into a file
-             **/
-            filenum++;
-            rfname = "BNJtemp-" + String.valueOf(filenum);
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(rfname));
-                while ((rightpage = right.next()) != null) {
-                    out.writeObject(rightpage);
-                }
-                out.close();
-            } catch (IOException io) {
-                System.out.println("NestedJoin: Error writing to temporary file");
-                return false;
-            }
-            if (!right.close())
-                return false;
+            rightahead = ReadAhead.pagesWithin(numBuff - 3);
+            blocksize = numBuff - 2 - rightahead; // Exclude input buffers for right relation and output buffer
         }
+
         if (left.open())
             return true;
         else
@@ -107,104 +119,170 @@ public class BlockNestedJoin extends Join {
     }
 
     /**
-     * from input buffers selects the tuples satisfying join condition
-     * * And returns a page of output tuples
+     * Keeps the right table in memory as long as it fits into the spare
+     * * buffers, otherwise writes it into a spill file that every block
+     * * scans with positioned reads
      **/
-    public Batch next() {
-        if (eosl && lcurs == 0) {
+    private boolean materializeRight() {
+        int rightbatchsize = Math.max(1, Batch.getPageSize() / right.getSchema().getTupleSize());
+        long limit = (long) Math.max(0, numBuff - 3) * rightbatchsize;
+        rightcache = new ArrayList<>();
+        TupleWriter writer = null;
+        Batch rightpage;
+        while ((rightpage = right.next()) != null) {
+            for (int i = 0; i < rightpage.size(); ++i) {
+                Tuple tuple = rightpage.get(i);
+                if (writer == null && rightcache.size() < limit) {
+                    rightcache.add(tuple);
+                    continue;
+                }
+                if (writer == null) {
+                    writer = spillRight(rightbatchsize);
+                    if (writer == null) {
+                        return false;
+                    }
+                }
+                writer.next(tuple);
+            }
+        }
+        if (writer != null && !writer.close()) {
+            System.out.println("NestedJoin: Error writing to temporary file");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the spill file of the right table and writes the tuples cached so far
+     **/
+    private TupleWriter spillRight(int rightbatchsize) {
+        filenum++;
+        rightstore = new RunStore("BNJtemp-" + String.valueOf(filenum), rightbatchsize);
+        if (!rightstore.open()) {
+            System.out.println("NestedJoin: Error writing to temporary file");
             return null;
         }
+        TupleWriter writer = rightstore.writer(RIGHT_RUN);
+        /** The cached pages are released once written, the right input page and one more remain **/
+        writer.setWriteBehind(WriteBehind.pagesWithin(2));
+        writer.open();
+        for (Tuple tuple : rightcache) {
+            writer.next(tuple);
+        }
+        rightcache = null;
+        return writer;
+    }
+
+    /**
+     * from input buffers selects the tuples satisfying join condition
+     * * And returns a page of output tuples. Every right tuple is looked
+     * * up in the hash table of the left block, so only the left tuples
+     * * with its key are visited. Output stops in the middle of a chain
+     * * of matches when the batch is full and resumes there on the next call
+     **/
+    public Batch next() {
         outbatch = new Batch(batchsize);
         while (!outbatch.isFull()) {
-            if (lcurs == 0 && eosr == true) {
-                /** new block is to be fetched**/
-                leftbatches = new ArrayList<>();
-                for (int i = 0; i < blocksize; i++) {
-                    Batch tempLeftBatch = left.next();
-                    if (tempLeftBatch == null && i == 0) {
-                        eosl = true;
+            if (matches != null) {
+                while (lcurs < matches.size()) {
+                    outbatch.add(matches.get(lcurs).joinWith(righttuple));
+                    lcurs++;
+                    if (outbatch.isFull()) {
                         return outbatch;
-                    } else if (tempLeftBatch == null) {
-                        eosl = true;
-                    } else {
-                        leftbatches.addAll(tempLeftBatch.getAll());
                     }
                 }
-
-                /** Whenever a new left page came, we have to start the
-                 ** scanning of right table
-                 **/
-                try {
-                    in = new ObjectInputStream(new FileInputStream(rfname));
-                    eosr = false;
-                } catch (IOException io) {
-                    System.err.println("NestedJoin:error in reading the file");
-                    System.exit(1);
-                }
+                matches = null;
             }
-            while (eosr == false) {
-                try {
-                    // Read in new right batch if the left block is done with the current right block
-                    if (rcurs == 0 && lcurs == 0) {
-                        rightbatch = (Batch) in.readObject();
-                    }
-                    for (int i = rcurs; i < rightbatch.size(); ++i) {
-                        for (int j = lcurs; j < leftbatches.size(); ++j) {
-                            Tuple righttuple = rightbatch.get(i);
-                            Tuple lefttuple = leftbatches.get(j);
-                            if (lefttuple.checkJoin(righttuple, leftindex, rightindex)) {
-                                Tuple outtuple = lefttuple.joinWith(righttuple);
-                                outbatch.add(outtuple);
-                                if (outbatch.isFull()) {
-                                    boolean rightBatchCursorFinished = (i == (rightbatch.size() - 1));
-                                    boolean leftBatchCursorFinished = (j == (leftbatches.size() - 1));
-
-                                    if (rightBatchCursorFinished && leftBatchCursorFinished) {
-                                        rcurs = 0;
-                                        lcurs = 0;
-                                    } else if (rightBatchCursorFinished && !leftBatchCursorFinished) {
-                                        rcurs = i;
-                                        lcurs = j + 1;
-                                    } else if (!rightBatchCursorFinished && leftBatchCursorFinished) {
-                                        rcurs = i + 1;
-                                        lcurs = 0;
-                                    } else {
-                                        rcurs = i;
-                                        lcurs = j + 1;
-                                    }
-                                    return outbatch;
-                                }
-                            }
-                        }
-                        lcurs = 0;
-                    }
-                    rcurs = 0;
-                } catch (EOFException e) {
-                    try {
-                        in.close();
-                    } catch (IOException io) {
-                        System.out.println("NestedJoin: Error in reading temporary file");
-                    }
-                    eosr = true;
-                } catch (ClassNotFoundException c) {
-                    System.out.println("NestedJoin: Error in deserialising temporary file ");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.out.println("NestedJoin: Error in reading temporary file");
-                    System.exit(1);
+            if (eosr) {
+                /** new block is to be fetched **/
+                if (eosl || !loadBlock()) {
+                    break;
                 }
             }
+            righttuple = nextRight();
+            if (righttuple == null) {
+                closeRightScan();
+                eosr = true;
+                continue;
+            }
+            matches = blocktable.get(keyOf(righttuple, rightindex));
+            lcurs = 0;
+        }
+        if (outbatch.isEmpty()) {
+            return null;
         }
         return outbatch;
     }
 
+    /**
+     * Reads the next block of up to blocksize left pages into the hash table
+     * * and starts a scan of the right table, false if the left input is exhausted
+     **/
+    private boolean loadBlock() {
+        blocktable = new HashMap<>();
+        boolean loaded = false;
+        for (int i = 0; i < blocksize; i++) {
+            Batch leftbatch = left.next();
+            if (leftbatch == null) {
+                eosl = true;
+                break;
+            }
+            for (int j = 0; j < leftbatch.size(); ++j) {
+                Tuple lefttuple = leftbatch.get(j);
+                blocktable.computeIfAbsent(keyOf(lefttuple, leftindex), k -> new ArrayList<>()).add(lefttuple);
+                loaded = true;
+            }
+        }
+        if (!loaded) {
+            eosl = true;
+            return false;
+        }
+
+        /** Whenever a new left block came, we have to start the
+         ** scanning of right table
+         **/
+        eosr = false;
+        rcurs = 0;
+        if (rightcache == null) {
+            rightreader = rightstore.reader(RIGHT_RUN);
+            rightreader.setReadAhead(rightahead);
+            if (!rightreader.open()) {
+                System.err.println("NestedJoin:error in reading the file");
+                System.exit(1);
+            }
+        }
+        return true;
+    }
+
+    /** Next tuple of the scan of the right table, null at its end **/
+    private Tuple nextRight() {
+        if (rightcache != null) {
+            return (rcurs < rightcache.size()) ? rightcache.get(rcurs++) : null;
+        }
+        return rightreader.next();
+    }
+
+    /** Ends the scan of the right table **/
+    private void closeRightScan() {
+        if (rightreader != null) {
+            rightreader.close();
+            rightreader = null;
+        }
+    }
+
     /**
      * Close the operator
      */
     public boolean close() {
-        File f = new File(rfname);
-        f.delete();
+        closeRightScan();
+        left.close();
+        if (rightstore != null) {
+            rightstore.close();
+            rightstore = null;
+        }
+        rightcache = null;
+        blocktable = null;
         return true;
     }
 
-}
\ No newline at end of file
+}
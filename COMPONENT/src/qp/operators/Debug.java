@@ -6,6 +6,8 @@ package qp.operators;
 
 import qp.utils.*;
 
+import java.util.ArrayList;
+
 public class Debug {
 
     /**
@@ -107,7 +109,11 @@ public class Debug {
             System.out.print("Select(");
             PPrint(((Select) node).getBase());
             System.out.print("  '");
-            PPrint(((Select) node).getCondition());
+            ArrayList<Condition> conditions = ((Select) node).getConditionList();
+            for (int i = 0; i < conditions.size(); ++i) {
+                if (i > 0) System.out.print(",");
+                PPrint(conditions.get(i));
+            }
             System.out.print(")");
 
         } else if (optype == OpType.PROJECT) {
@@ -119,13 +125,40 @@ public class Debug {
             System.out.print(((Scan) node).getTabName());
 
         } else if (optype == OpType.DISTINCT) {
-            System.out.print("Distinct(");
+            if (((Distinct) node).getDistinctType() == DistinctType.HASH) {
+                System.out.print("HashDistinct(");
+            } else {
+                System.out.print("Distinct(");
+            }
             PPrint(((Distinct) node).getBase());
             System.out.print(")");
         } else if (optype == OpType.SORT) {
             System.out.print("Order by(");
             PPrint(((OrderBy) node).getBase());
             System.out.print(")");
+        } else if (optype == OpType.AGGREGATE) {
+            if (((Aggregate) node).isPartial()) {
+                System.out.print("Partial");
+            }
+            switch (((Aggregate) node).getAggregateType()) {
+                case AggregateType.HASH:
+                    System.out.print("HashAggregate(");
+                    break;
+                case AggregateType.SORT:
+                    System.out.print("SortAggregate(");
+                    break;
+                case AggregateType.SCALAR:
+                    System.out.print("ScalarAggregate(");
+                    break;
+            }
+            PPrint(((Aggregate) node).getBase());
+            System.out.print("  [");
+            ArrayList<Attribute> groupbylist = ((Aggregate) node).getGroupByList();
+            for (int i = 0; i < groupbylist.size(); ++i) {
+                if (i > 0) System.out.print(",");
+                PPrint(groupbylist.get(i));
+            }
+            System.out.print("])");
         }
     }
 
@@ -134,7 +167,7 @@ public class Debug {
      * print a tuple
      **/
     public static void PPrint(Tuple t) {
-        for (int i = 0; i < t.data().size(); i++) {
+        for (int i = 0; i < t.size(); i++) {
             Object data = t.dataAt(i);
             if (data instanceof Integer) {
                 System.out.print((Integer) data + "\t");
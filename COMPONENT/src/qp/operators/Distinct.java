@@ -12,6 +12,7 @@ public class Distinct extends Operator {
     ArrayList<Attribute> attrset;  // Set of attributes to project
     int batchsize;                 // Number of tuples per outbatch
     int numBuff;
+    int distincttype;              // DistinctType of the operator that eliminates the duplicates
 
     /**
      * The following fields are requied during execution
@@ -44,6 +45,22 @@ public class Distinct extends Operator {
         this.numBuff = num;
     }
 
+    public int getNumBuff() {
+        return numBuff;
+    }
+
+    public ArrayList<Attribute> getProjAttr() {
+        return attrset;
+    }
+
+    public int getDistinctType() {
+        return distincttype;
+    }
+
+    public void setDistinctType(int type) {
+        this.distincttype = type;
+    }
+
     public boolean open() {
         /** set number of tuples per batch **/
         int tuplesize = schema.getTupleSize();
@@ -109,6 +126,7 @@ public class Distinct extends Operator {
         Distinct newdistinct = new Distinct(newbase, newattr, optype);
         Schema newSchema = newbase.getSchema().subSchema(newattr);
         newdistinct.setSchema(newSchema);
+        newdistinct.setDistinctType(distincttype);
         return newdistinct;
     }
 }
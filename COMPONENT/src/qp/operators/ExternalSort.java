@@ -2,146 +2,613 @@ package qp.operators;
 
 import qp.utils.*;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class ExternalSort extends Operator{
     public static int ESnum = 0; // To ensure that all files written out by ESnum is unique
+
+    public static final int LOADSORT = 0;     // Runs of numBuffer pages sorted in memory
+    public static final int REPLACEMENT = 1;  // Runs generated by replacement selection
+    static int runGeneration = REPLACEMENT;   // How the sorted runs are generated
+    static int sortThreads = 1;               // Number of threads sorting runs in parallel
+
     private boolean reverse;
     private int numBuffer; //number of buffers available
+    private int mergeBuffers; //number of buffers held while the sorted output is consumed
     private int batchSize; //number of tuples that can be stored in the batch
     private int pass = 0;
 
     private String id;
     private Operator base;
     private final ArrayList<Integer> compareIndex; //Index of columns to sort by
-    private ArrayList<String> tempFiles; //Contains pages that are stored on the disk
+    private ArrayList<String> tempFiles; //Names of the runs stored on the disk
+    RunStore store; //Spill file holding all the runs
     ArrayList<TupleReader> curr_readers; //Input tuple readers(Each tuple reader is allocated 1 input buffer during merging)
-    PriorityQueue<TupleIndexPair> pq; //PQ is used to select tuples from the respective input buffers during merging phase
+    LoserTree<SortKey> merger; //Loser tree used to select tuples from the respective input buffers during merging phase
+
+    int[] keyIndex; //Index of columns to sort by, normalized into a SortKey per tuple
+    SortKey[] heap; //Heap of the replacement selection
+    int[] heapRuns; //Run number of every tuple in the heap
+    long[] heapSeqs; //Input position of every tuple in the heap, breaks ties between equal keys
+    int heapSize; //Number of tuples in the heap
+
+    Map<String, ArrayList<SortKey>> runSamples; //Key of the first tuple of every batch of a run, only kept for a parallel merge
+    ArrayList<String> rangeFiles; //Merged key ranges after the first one, written by the merge workers
+    ArrayList<Future<?>> rangeMerges; //Merge worker of every range file
+    int nextRange; //Next range file to be returned
+    int rangeBuffers; //Buffers of every range of the parallel merge
+    TupleReader rangeReader; //Reader of the range file being returned
+    volatile boolean cancelled; //Set on close to stop the merge workers
+
+    ArrayList<Batch> prefetched; //Input pages read before the run generation to find out whether the input fits
+    boolean inputDone; //Whether the input has returned its last batch
+    SortKey[] memoryRun; //Last sorted run, kept in memory instead of a file
+    int memoryCurs; //Next tuple of the memory run when it is the only run
 
     public ExternalSort(String id, Operator base, ArrayList<Integer> compareIndex, boolean reverse, int numBuffer) {
         super(OpType.SORT);
         this.base = base;
         this.numBuffer = numBuffer;
+        this.mergeBuffers = numBuffer;
         this.compareIndex = compareIndex;
         this.reverse = reverse;
+        this.keyIndex = new int[compareIndex.size()];
+        for (int i = 0; i < keyIndex.length; i++) {
+            keyIndex[i] = compareIndex.get(i);
+        }
         int tupleSize = base.getSchema().getTupleSize();
         this.batchSize = Batch.getPageSize()/tupleSize;
         this.tempFiles = new ArrayList<>();
         this.id = id + String.valueOf(ESnum);
         ESnum += 1;
         curr_readers = new ArrayList<>();
+        rangeFiles = new ArrayList<>();
+        rangeMerges = new ArrayList<>();
+    }
+
+    /**
+     * Limits the buffers the sort holds once open() has returned, for a
+     * * consumer that keeps other inputs open next to the sorted output.
+     * * Runs are still generated and merged with all numBuffer buffers,
+     * * but the final merge, the memory run and an input sorted in memory
+     * * fit into mergeBuffers pages (at least 2: a run and the output page)
+     **/
+    public void setMergeBuffers(int mergeBuffers) {
+        this.mergeBuffers = Math.max(2, Math.min(numBuffer, mergeBuffers));
     }
 
     private void deleteTempFiles() {
         for (int x = 0; x < this.tempFiles.size(); x++) {
-            File f = new File(this.tempFiles.get(x));
-            f.delete();
+            deleteRun(this.tempFiles.get(x));
+        }
+    }
+
+    /** Releases the pages of the run in the spill file **/
+    private void deleteRun(String run) {
+        if (store != null) {
+            store.delete(run);
+        }
+        if (runSamples != null) {
+            runSamples.remove(run);
+        }
+    }
+
+    /**
+     * New list for the samples of the run written to the file,
+     * * null if no samples are kept
+     **/
+    private ArrayList<SortKey> samplesFor(String fileName) {
+        if (runSamples == null) {
+            return null;
         }
+        ArrayList<SortKey> samples = new ArrayList<>();
+        runSamples.put(fileName, samples);
+        return samples;
     }
 
-    private void writeTuplesToOutput(ArrayList<Tuple> tuples, String fileName) {
-        TupleWriter writer = new TupleWriter(fileName, this.batchSize);
+    /** Writes the tuple of the key to the run and samples the first key of every batch **/
+    private void writeRunTuple(TupleWriter writer, SortKey key, ArrayList<SortKey> samples) {
+        writer.next(key.tuple);
+        if (samples != null && writer.startedBatch()) {
+            samples.add(key);
+        }
+    }
+
+    /**
+     * Sorted keys of the tuples. The sort is stable, so equal
+     * * keys stay in input order whatever the size of the run
+     **/
+    private SortKey[] sortKeys(ArrayList<Tuple> tuples) {
+        SortKey[] keys = new SortKey[tuples.size()];
+        for (int x = 0; x < keys.length; x++) {
+            keys[x] = new SortKey(tuples.get(x), keyIndex, reverse);
+        }
+        tuples.clear();
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /** Sorts the tuples and writes them out as a run **/
+    private void sortRun(ArrayList<Tuple> tuples, String fileName) {
+        SortKey[] keys = sortKeys(tuples);
+        TupleWriter writer = openRun(fileName, runWriteBehind(numBuffer));
+        ArrayList<SortKey> samples = samplesFor(fileName);
+        for (int x = 0; x < keys.length; x++) {
+            writeRunTuple(writer, keys[x], samples);
+        }
+        closeRun(writer);
+    }
+
+    /** Writer of a new run, up to writeBehind pages are written on a background thread **/
+    private TupleWriter openRun(String fileName, int writeBehind) {
+        TupleWriter writer = store.writer(fileName);
+        writer.setWriteBehind(writeBehind);
         if (!writer.open()) {
             System.out.printf("%s:writing ES file error\n", fileName);
             System.exit(1);
         }
-        for (int x = 0; x < tuples.size(); x++) {
-            writer.next(tuples.get(x));
+        return writer;
+    }
+
+    /** Waits until the run is written, the pages written behind may have failed **/
+    private static void closeRun(TupleWriter writer) {
+        if (!writer.close()) {
+            System.out.printf("%s:writing ES file error\n", writer.getFileName());
+            System.exit(1);
         }
-        writer.close();
+    }
+
+    /** Set how the sorted runs are generated **/
+    public static void setRunGeneration(int mode) {
+        runGeneration = mode;
+    }
+
+    public static int getRunGeneration() {
+        return runGeneration;
+    }
+
+    /** Set the number of threads sorting runs, 1 generates the runs serially **/
+    public static void setSortThreads(int threads) {
+        sortThreads = Math.max(1, threads);
+    }
+
+    public static int getSortThreads() {
+        return sortThreads;
+    }
+
+    /**
+     * Number of runs sorted at the same time, every one of them
+     * * needs at least one of the numBuffer pages
+     **/
+    static int parallelDegree(long numBuffer) {
+        return (int) Math.max(1, Math.min(sortThreads, numBuffer));
+    }
+
+    /**
+     * Whether an input of the given number of pages is sorted in memory
+     * * without any run file, one page is left for the output
+     **/
+    public static boolean fitsInMemory(long pages, long numBuffer) {
+        return pages <= numBuffer - 1;
+    }
+
+    /**
+     * Pages written behind by the writer of a run being generated, they
+     * * are taken from the pages the run is generated from
+     **/
+    static int runWriteBehind(long numBuffer) {
+        int degree = parallelDegree(numBuffer);
+        if (degree > 1) {
+            return WriteBehind.pagesWithin((int) (numBuffer / degree) - 1);
+        }
+        if (runGeneration == REPLACEMENT) {
+            return WriteBehind.pagesWithin((int) numBuffer - 3);
+        }
+        return WriteBehind.pagesWithin((int) numBuffer - 1);
+    }
+
+    /**
+     * Pages of tuples a run is generated from: the group of a load-sort run,
+     * * the share of a parallel run or the heap of replacement selection
+     **/
+    static int runPages(long numBuffer) {
+        int degree = parallelDegree(numBuffer);
+        if (degree > 1) {
+            return (int) Math.max(1, numBuffer / degree - runWriteBehind(numBuffer));
+        }
+        if (runGeneration == REPLACEMENT) {
+            return (int) Math.max(1, numBuffer - 2 - runWriteBehind(numBuffer));
+        }
+        return (int) Math.max(1, numBuffer - runWriteBehind(numBuffer));
+    }
+
+    /**
+     * Expected number of sorted runs of an input of the given number of pages,
+     * * replacement selection produces runs of twice the heap size on random input,
+     * * parallel run generation splits the buffers between the runs being sorted
+     **/
+    public static long estimateRuns(long pages, long numBuffer) {
+        if (parallelDegree(numBuffer) == 1 && runGeneration == REPLACEMENT) {
+            return Math.max(1, (long) Math.ceil((double) pages / (2 * runPages(numBuffer))));
+        }
+        return Math.max(1, (long) Math.ceil((double) pages / runPages(numBuffer)));
     }
 
     private void generateSortedRuns() {
-        Batch nextBatch;
+        if (parallelDegree(numBuffer) > 1) {
+            generateParallelRuns();
+        } else if (runGeneration == REPLACEMENT) {
+            generateReplacementRuns();
+        } else {
+            generateLoadSortRuns();
+        }
+    }
+
+    /**
+     * Loads runPages(numBuffer) pages at a time, sorts them and writes them
+     * * out as a run, the pages the run writer has in flight are not loaded
+     **/
+    private void generateLoadSortRuns() {
+        ArrayList<Tuple> group = new ArrayList<>();
         int runCount = 0;
+        while (readGroup(group, runPages(numBuffer))) {
+            if (inputExhausted() && keepInMemory(group.size())) {
+                memoryRun = sortKeys(group);
+                break;
+            }
+            String output_file = "EStempRun-" + this.id + "_" + this.pass + "-" + runCount;
+            sortRun(group, output_file);
+            tempFiles.add(output_file);
+            runCount++;
+        }
+        this.pass++;
+    }
 
-        if (!this.base.open()) {
-            System.out.printf("Unable to open operator to generate Sorted Runs\n");
-            System.exit(1);
+    /** Next batch of the input, the prefetched ones come first **/
+    private Batch nextInputBatch() {
+        if (!prefetched.isEmpty()) {
+            return prefetched.remove(0);
+        }
+        if (inputDone) {
+            return null;
         }
+        Batch nextBatch = this.base.next();
+        if (nextBatch == null) {
+            inputDone = true;
+        }
+        return nextBatch;
+    }
+
+    /** Whether every batch of the input, the prefetched ones included, has been read **/
+    private boolean inputExhausted() {
+        return inputDone && (prefetched == null || prefetched.isEmpty());
+    }
+
+    /**
+     * Reads numBuffer pages of the input ahead, returns
+     * * true if they hold the whole input
+     **/
+    private boolean prefetch() {
+        prefetched = new ArrayList<>();
+        inputDone = false;
+        while (prefetched.size() < this.numBuffer) {
+            Batch nextBatch = this.base.next();
+            if (nextBatch == null) {
+                inputDone = true;
+                break;
+            }
+            prefetched.add(nextBatch);
+        }
+        return inputDone;
+    }
+
+    /**
+     * Whether the last run of the given number of tuples can stay in memory:
+     * * the final merge then needs no further pass and its input page per run
+     * * file and output page still fit next to the run in the mergeBuffers pages
+     **/
+    private boolean keepInMemory(int tuples) {
+        int files = tempFiles.size();
+        long pages = (tuples + Math.max(1, batchSize) - 1) / Math.max(1, batchSize);
+        return files + 1 <= mergeBuffers - 1 && pages + files + 1 <= mergeBuffers;
+    }
+
+    /**
+     * Reads up to the given number of pages of the input into the group,
+     * * returns false if the input has no more tuples
+     **/
+    private boolean readGroup(ArrayList<Tuple> group, int pages) {
+        for (int page = 0; page < pages; page++) {
+            Batch nextBatch = nextInputBatch();
+            if (nextBatch == null) {
+                break;
+            }
+            for (int x = 0; x < nextBatch.size(); x++) {
+                group.add(nextBatch.get(x));
+            }
+        }
+        return !group.isEmpty();
+    }
 
-        int batchCount;
-        boolean lastBatch = false;
-        do {
-            batchCount = 0;
-            ArrayList<Tuple> inMemoryTuples = new ArrayList<>();
-            while (batchCount < this.numBuffer) {
-                nextBatch = this.base.next();
-                if (nextBatch == null) {
-                    lastBatch = true;
+    /**
+     * Load-sort runs generated by several threads. This thread reads groups
+     * * of numBuffer / degree pages, less those of the run writer in flight,
+     * * from the input while up to degree workers sort the groups read before
+     * * and write them out, so at most numBuffer pages are held at any time.
+     * * A group only waits for a free slot, never for the runs before it.
+     * * Runs are numbered in input order and the sort is stable, so the runs
+     * * and the sorted output are the same as those of the serial load-sort
+     * * with the same run size
+     **/
+    private void generateParallelRuns() {
+        int degree = parallelDegree(numBuffer);
+        int groupPages = runPages(numBuffer);
+        ExecutorService workers = Executors.newFixedThreadPool(degree);
+        Semaphore freeGroups = new Semaphore(degree);
+        ArrayList<Future<?>> sorted = new ArrayList<>();
+        try {
+            int runCount = 0;
+            while (true) {
+                freeGroups.acquire();
+                ArrayList<Tuple> group = new ArrayList<>();
+                if (!readGroup(group, groupPages)) {
                     break;
                 }
-                for (int x = nextBatch.size() - 1; x >= 0; x--) {
-                    inMemoryTuples.add(nextBatch.get(x));
+                if (inputExhausted() && keepInMemory(group.size())) {
+                    memoryRun = sortKeys(group);
+                    break;
                 }
-                batchCount++;
-            }
-            if (!inMemoryTuples.isEmpty()) {
-                Collections.sort(inMemoryTuples, new TupleComparator(this.compareIndex, this.compareIndex, this.reverse));
                 String output_file = "EStempRun-" + this.id + "_" + this.pass + "-" + runCount;
-                writeTuplesToOutput(inMemoryTuples, output_file);
                 tempFiles.add(output_file);
+                sorted.add(workers.submit(() -> {
+                    try {
+                        sortRun(group, output_file);
+                    } finally {
+                        freeGroups.release();
+                    }
+                }));
                 runCount++;
             }
-        } while (!lastBatch);
-
+            for (Future<?> run : sorted) {
+                run.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ExternalSort: interrupted while generating sorted runs");
+            System.exit(1);
+        } catch (ExecutionException e) {
+            System.out.println("ExternalSort: error while sorting a run " + e.getCause());
+            System.exit(1);
+        } finally {
+            workers.shutdown();
+        }
         this.pass++;
-        this.base.close();
     }
 
-    private void merge_pq_setup() {
-        Comparator<TupleIndexPair> custom_comparator = new Comparator<TupleIndexPair>() {
-            @Override
-            public int compare(TupleIndexPair o1, TupleIndexPair o2) {
-                int result = Tuple.compareTuples(o1.tuple, o2.tuple, compareIndex, compareIndex);
-                return reverse ? -result: result;
+    /**
+     * Replacement selection: a heap of numBuffer - 2 pages (one input and
+     * * one output page remain), less the output pages in flight, always
+     * * writes out its smallest tuple that still belongs to the current run.
+     * * An input tuple smaller than the last one written is tagged for the
+     * * next run. Runs are about twice the heap size on random input and the
+     * * whole input is one run when it is nearly sorted. Equal keys leave the
+     * * heap in input order, so the sort is stable like the load-sort runs.
+     * * Once the input is exhausted the last run may stay in memory
+     **/
+    private void generateReplacementRuns() {
+        int capacity = runPages(numBuffer) * Math.max(1, batchSize);
+        heap = new SortKey[capacity];
+        heapRuns = new int[capacity];
+        heapSeqs = new long[capacity];
+        heapSize = 0;
+        long seq = 0;
+
+        Batch inBatch = nextInputBatch();
+        int inCurs = 0;
+        /** Fill the heap with the first tuples, all of them belong to the first run **/
+        while (inBatch != null && heapSize < capacity) {
+            if (inCurs < inBatch.size()) {
+                heap[heapSize] = new SortKey(inBatch.get(inCurs++), keyIndex, reverse);
+                heapRuns[heapSize] = 0;
+                heapSeqs[heapSize] = seq++;
+                siftUp(heapSize++);
+            } else {
+                inBatch = nextInputBatch();
+                inCurs = 0;
             }
-        };
-        pq = new PriorityQueue<>(numBuffer - 1, custom_comparator);
-        //Populate PQ with first tuple from each buffer
-        for (int x = 0; x < curr_readers.size(); x++) {
-            Tuple tuple = curr_readers.get(x).next();
-            assert(tuple != null);
-            pq.add(new TupleIndexPair(tuple, x));
         }
+
+        int currentRun = -1;
+        TupleWriter writer = null;
+        ArrayList<SortKey> samples = null;
+        while (heapSize > 0) {
+            SortKey smallest = heap[0];
+            int run = heapRuns[0];
+            if (run != currentRun) {
+                if (writer != null) {
+                    closeRun(writer);
+                }
+                if (inBatch == null && keepInMemory(heapSize)) {
+                    /** The heap holds the whole last run **/
+                    memoryRun = new SortKey[heapSize];
+                    for (int x = 0; x < memoryRun.length; x++) {
+                        memoryRun[x] = popHeap();
+                    }
+                    writer = null;
+                    break;
+                }
+                currentRun = run;
+                String output_file = "EStempRun-" + this.id + "_" + this.pass + "-" + run;
+                writer = openRun(output_file, runWriteBehind(numBuffer));
+                tempFiles.add(output_file);
+                samples = samplesFor(output_file);
+            }
+            writeRunTuple(writer, smallest, samples);
+
+            /** Replace the written tuple by the next input tuple **/
+            while (inBatch != null && inCurs >= inBatch.size()) {
+                inBatch = nextInputBatch();
+                inCurs = 0;
+            }
+            if (inBatch != null) {
+                SortKey next = new SortKey(inBatch.get(inCurs++), keyIndex, reverse);
+                heap[0] = next;
+                heapRuns[0] = (next.compareTo(smallest) >= 0) ? run : run + 1;
+                heapSeqs[0] = seq++;
+                siftDown(0);
+            } else {
+                popHeap();
+            }
+        }
+        if (writer != null) {
+            closeRun(writer);
+        }
+        heap = null;
+        heapRuns = null;
+        heapSeqs = null;
+        this.pass++;
     }
 
-    private void merge(String output_file) {
-        TupleWriter writer = new TupleWriter(output_file, this.batchSize);
+    /** Removes and returns the smallest entry of the heap **/
+    private SortKey popHeap() {
+        SortKey smallest = heap[0];
+        heapSize--;
+        heap[0] = heap[heapSize];
+        heapRuns[0] = heapRuns[heapSize];
+        heapSeqs[0] = heapSeqs[heapSize];
+        heap[heapSize] = null;
+        siftDown(0);
+        return smallest;
+    }
 
-        if (!writer.open()) {
-            System.out.printf("%s:writing merged file error\n", output_file);
-            System.exit(1);
+    /** Heap order: by run number first, then by the sort key and the input position **/
+    private boolean heapLess(int i, int j) {
+        if (heapRuns[i] != heapRuns[j]) {
+            return heapRuns[i] < heapRuns[j];
         }
+        int result = heap[i].compareTo(heap[j]);
+        return result < 0 || (result == 0 && heapSeqs[i] < heapSeqs[j]);
+    }
 
-        merge_pq_setup();
-        //Merge and place each element into the output buffer
-        while (!pq.isEmpty()) {
-            TupleIndexPair tupleIndexPair = pq.poll();
-            writer.next(tupleIndexPair.tuple);
-            Tuple nextTuple = curr_readers.get(tupleIndexPair.index).next();
-            if (nextTuple != null) {
-                pq.add(new TupleIndexPair(nextTuple, tupleIndexPair.index));
+    private void heapSwap(int i, int j) {
+        SortKey entry = heap[i];
+        heap[i] = heap[j];
+        heap[j] = entry;
+        int run = heapRuns[i];
+        heapRuns[i] = heapRuns[j];
+        heapRuns[j] = run;
+        long seq = heapSeqs[i];
+        heapSeqs[i] = heapSeqs[j];
+        heapSeqs[j] = seq;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!heapLess(i, parent)) {
+                return;
+            }
+            heapSwap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int child = 2 * i + 1;
+            if (child < heapSize && heapLess(child, smallest)) {
+                smallest = child;
+            }
+            if (child + 1 < heapSize && heapLess(child + 1, smallest)) {
+                smallest = child + 1;
+            }
+            if (smallest == i) {
+                return;
+            }
+            heapSwap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    /**
+     * Sets up a loser tree over the current readers, every reader is one input buffer
+     **/
+    private void merge_setup() {
+        merger = rangeMerger(new ArrayList<>(curr_readers), null, null, null);
+    }
+
+    /**
+     * Loser tree merging the tuples of the readers and of the memory run, if
+     * * any, with keys in [lo, hi). A null bound leaves the range open on that
+     * * side. The memory run is the last run, so it comes after the readers
+     **/
+    private LoserTree<SortKey> rangeMerger(ArrayList<TupleReader> readers, SortKey[] memory, SortKey lo, SortKey hi) {
+        final boolean[] reachedLo = new boolean[readers.size()];  // Runs are sorted, lo is checked until reached
+        final int[] memoryCurs = {(memory == null) ? 0 : lowerBound(Arrays.asList(memory), lo)};
+        int numSources = readers.size() + ((memory == null) ? 0 : 1);
+        return new LoserTree<SortKey>(numSources, Comparator.naturalOrder()) {
+            protected SortKey nextFrom(int source) {
+                if (source == readers.size()) {
+                    if (memoryCurs[0] >= memory.length || (hi != null && memory[memoryCurs[0]].compareTo(hi) >= 0)) {
+                        return null;
+                    }
+                    return memory[memoryCurs[0]++];
+                }
+                TupleReader reader = readers.get(source);
+                Tuple tuple;
+                while ((tuple = reader.next()) != null) {
+                    SortKey key = new SortKey(tuple, keyIndex, reverse);
+                    if (hi != null && key.compareTo(hi) >= 0) {
+                        break;
+                    }
+                    if (lo == null || reachedLo[source] || key.compareTo(lo) >= 0) {
+                        reachedLo[source] = true;
+                        return key;
+                    }
+                }
+                reader.close();
+                return null;
             }
+        };
+    }
+
+    private void merge(String output_file, int writeBehind) {
+        TupleWriter writer = openRun(output_file, writeBehind);
+
+        merge_setup();
+        //Merge and place each element into the output buffer
+        ArrayList<SortKey> samples = samplesFor(output_file);
+        SortKey entry;
+        while ((entry = merger.next()) != null) {
+            writeRunTuple(writer, entry, samples);
         }
-        writer.close();
+        closeRun(writer);
     }
 
-    //single pass over all pages
+    //single pass over all pages, the pages of the merged runs are reused for the next merges
     private void mergePass() {
         ArrayList<String> next_sorted_temp_runs = new ArrayList<>();
         int run_count = 0;
         int x = 0;
 
         while (x < this.tempFiles.size()) {
+            int first = x;
             do {
                 //Add pages into buffer until input buffers are full
                 String tempFileName = this.tempFiles.get(x);
-                TupleReader reader = new TupleReader(tempFileName, this.batchSize);
+                TupleReader reader = store.reader(tempFileName);
                 if (!reader.open()) {
                     System.out.printf("%s: Unable to open file to during merging\n", tempFileName);
                     System.exit(1);
@@ -151,47 +618,219 @@ public class ExternalSort extends Operator{
             } while (x < this.tempFiles.size() && x % (numBuffer - 1) != 0);
 
             String output_file = "EStempRun-" + this.id + "-" + this.pass + "-" + run_count;
-            merge(output_file);
+            /** The spare pages go to the output written behind first, then to the readers **/
+            int spare = numBuffer - 1 - curr_readers.size();
+            int writeBehind = WriteBehind.pagesWithin(spare);
+            setReadAhead(curr_readers, spare - writeBehind);
+            merge(output_file, writeBehind);
             next_sorted_temp_runs.add(output_file);
             run_count++;
             curr_readers.clear();
+            for (int merged = first; merged < x; merged++) {
+                deleteRun(this.tempFiles.get(merged));
+            }
         }
         this.pass++;
-        deleteTempFiles();
         this.tempFiles = next_sorted_temp_runs;
     }
 
+    /**
+     * Number of key ranges merged in parallel by the final merge. Every
+     * * range reads one page of every run and writes one page, so the
+     * * degree is limited to what fits into mergeBuffers pages
+     **/
+    private int mergeDegree() {
+        int files = tempFiles.size();
+        int memoryPages = memoryPages();
+        if (runSamples == null || files + ((memoryRun == null) ? 0 : 1) < 2) {
+            return 1;
+        }
+        return Math.max(1, Math.min(parallelDegree(mergeBuffers), (mergeBuffers - memoryPages) / (files + 1)));
+    }
+
+    /** Pages held by the memory run **/
+    private int memoryPages() {
+        if (memoryRun == null) {
+            return 0;
+        }
+        return (memoryRun.length + Math.max(1, batchSize) - 1) / Math.max(1, batchSize);
+    }
+
+    /**
+     * Lets the readers read ahead, they share the given number of
+     * * spare pages of the numBuffer pages of the sort
+     **/
+    private void setReadAhead(ArrayList<TupleReader> readers, int spare) {
+        if (readers.isEmpty()) {
+            return;
+        }
+        int pages = ReadAhead.pagesWithin(spare / readers.size());
+        for (TupleReader reader : readers) {
+            reader.setReadAhead(pages);
+        }
+    }
+
+    /**
+     * Range boundaries at evenly spaced ranks of the sampled keys of all
+     * * runs, equal boundaries are dropped so that the ranges are disjoint
+     **/
+    private ArrayList<SortKey> chooseSplitters(int degree) {
+        ArrayList<SortKey> samples = new ArrayList<>();
+        for (String tempFile : tempFiles) {
+            samples.addAll(runSamples.get(tempFile));
+        }
+        if (memoryRun != null) {
+            for (int x = 0; x < memoryRun.length; x += Math.max(1, batchSize)) {
+                samples.add(memoryRun[x]);
+            }
+        }
+        Collections.sort(samples);
+        ArrayList<SortKey> splitters = new ArrayList<>();
+        for (int r = 1; r < degree && !samples.isEmpty(); r++) {
+            SortKey splitter = samples.get((int) ((long) r * samples.size() / degree));
+            if (splitters.isEmpty() || splitters.get(splitters.size() - 1).compareTo(splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        return splitters;
+    }
+
+    /**
+     * Opens a reader on every run, positioned at the batch before the first
+     * * batch starting at a key of at least lo, no batch after it can hold a smaller key
+     **/
+    private ArrayList<TupleReader> openRangeReaders(SortKey lo) {
+        ArrayList<TupleReader> readers = new ArrayList<>();
+        for (String tempFileName : tempFiles) {
+            TupleReader reader = store.reader(tempFileName);
+            if (!reader.open()) {
+                System.out.printf("%s: Unable to open file for final merge\n", tempFileName);
+                System.exit(1);
+            }
+            if (lo != null) {
+                reader.skipBatches(lowerBound(runSamples.get(tempFileName), lo) - 1);
+            }
+            readers.add(reader);
+        }
+        return readers;
+    }
+
+    /** Index of the first key of the sorted keys that is at least lo, 0 if lo is null **/
+    private static int lowerBound(List<SortKey> keys, SortKey lo) {
+        int below = 0;
+        int above = (lo == null) ? 0 : keys.size();
+        while (below < above) {
+            int mid = (below + above) >>> 1;
+            if (keys.get(mid).compareTo(lo) < 0) {
+                below = mid + 1;
+            } else {
+                above = mid;
+            }
+        }
+        return below;
+    }
+
+    /**
+     * Splits the final merge into key ranges at splitters sampled from the
+     * * runs. Workers merge the ranges after the first one into range files
+     * * while next() merges the first range itself and then returns the range
+     * * files in order. Equal keys fall into the same range and are merged in
+     * * run order, so the output is the same as that of the serial merge
+     **/
+    private void parallelMergeSetup(int degree) {
+        ArrayList<SortKey> splitters = chooseSplitters(degree);
+        rangeBuffers = (mergeBuffers - memoryPages()) / degree;
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, splitters.size()));
+        for (int r = 0; r < splitters.size(); r++) {
+            final SortKey lo = splitters.get(r);
+            final SortKey hi = (r + 1 < splitters.size()) ? splitters.get(r + 1) : null;
+            final String output_file = "EStempRun-" + this.id + "-final-" + (r + 1);
+            rangeFiles.add(output_file);
+            rangeMerges.add(workers.submit(() -> {
+                ArrayList<TupleReader> readers = openRangeReaders(lo);
+                int spare = rangeBuffers - 1 - readers.size();
+                int writeBehind = WriteBehind.pagesWithin(spare);
+                setReadAhead(readers, spare - writeBehind);
+                LoserTree<SortKey> rangeMerger = rangeMerger(readers, memoryRun, lo, hi);
+                TupleWriter writer = openRun(output_file, writeBehind);
+                SortKey entry;
+                while (!cancelled && (entry = rangeMerger.next()) != null) {
+                    writer.next(entry.tuple);
+                }
+                closeRun(writer);
+                for (TupleReader reader : readers) {
+                    reader.close();
+                }
+            }));
+        }
+        workers.shutdown();
+        curr_readers.addAll(openRangeReaders(null));
+        setReadAhead(curr_readers, rangeBuffers - 1 - curr_readers.size());
+        merger = rangeMerger(new ArrayList<>(curr_readers), memoryRun, null, splitters.isEmpty() ? null : splitters.get(0));
+    }
+
+    /**
+     * An input of less than mergeBuffers pages is sorted in memory and returned
+     * * without writing any run. Otherwise the last run stays in memory if the
+     * * final merge leaves room for it
+     **/
     public boolean open() {
+        if (!this.base.open()) {
+            System.out.printf("Unable to open operator to generate Sorted Runs\n");
+            System.exit(1);
+        }
+        if (prefetch() && fitsInMemory(prefetched.size(), mergeBuffers)) {
+            ArrayList<Tuple> tuples = new ArrayList<>();
+            for (Batch batch : prefetched) {
+                for (int x = 0; x < batch.size(); x++) {
+                    tuples.add(batch.get(x));
+                }
+            }
+            prefetched = null;
+            memoryRun = sortKeys(tuples);
+            memoryCurs = 0;
+            this.base.close();
+            return true;
+        }
+        if (parallelDegree(numBuffer) > 1) {
+            runSamples = new ConcurrentHashMap<>();
+        }
+        store = new RunStore("EStempStore-" + this.id, this.batchSize);
+        if (!store.open()) {
+            System.out.printf("Unable to create the spill file of the sort\n");
+            System.exit(1);
+        }
         generateSortedRuns();
-        while (tempFiles.size() > numBuffer - 1) {
+        prefetched = null;
+        this.base.close();
+        while (tempFiles.size() > mergeBuffers - 1) {
             mergePass();
         }
+        int degree = mergeDegree();
+        if (degree > 1) {
+            parallelMergeSetup(degree);
+            return true;
+        }
         //Load pages in disk into buffer
         for (int x = 0; x < tempFiles.size(); x++) {
             String tempFileName = this.tempFiles.get(x);
-            TupleReader reader = new TupleReader(tempFileName, this.batchSize);
+            TupleReader reader = store.reader(tempFileName);
             if (!reader.open()) {
                 System.out.printf("%s: Unable to open file for final merge\n", tempFileName);
                 System.exit(1);
             }
             curr_readers.add(reader);
         }
-        merge_pq_setup();
+        setReadAhead(curr_readers, mergeBuffers - 1 - memoryPages() - curr_readers.size());
+        merger = rangeMerger(new ArrayList<>(curr_readers), memoryRun, null, null);
         return true;
     }
 
     public Batch next() {
         Batch outBatch = new Batch(this.batchSize);
-        while (!pq.isEmpty()) {
-            TupleIndexPair tupleIndexPair = pq.poll();
-            outBatch.add(tupleIndexPair.tuple);
-            Tuple nextTuple = curr_readers.get(tupleIndexPair.index).next();
-            if (nextTuple != null) {
-                pq.add(new TupleIndexPair(nextTuple, tupleIndexPair.index));
-            }
-            if (outBatch.isFull()) {
-                return outBatch;
-            }
+        Tuple tuple;
+        while (!outBatch.isFull() && (tuple = nextTuple()) != null) {
+            outBatch.add(tuple);
         }
         if (outBatch.isEmpty()) {
             outBatch = null;
@@ -199,21 +838,83 @@ public class ExternalSort extends Operator{
         return outBatch;
     }
 
+    /** Next tuple of the sorted output, null at its end **/
+    private Tuple nextTuple() {
+        SortKey key = nextKey();
+        return (key == null) ? null : key.tuple;
+    }
+
+    /**
+     * Next tuple of the sorted output together with its sort key, null at
+     * * its end. The tuples come from the memory run if it is the only run,
+     * * otherwise from the first range and then from the range files in
+     * * order. Only the tuples read back from a range file are keyed here,
+     * * all the others carry the key they were sorted or merged by
+     **/
+    public SortKey nextKey() {
+        if (memoryRun != null && tempFiles.isEmpty()) {
+            return (memoryCurs < memoryRun.length) ? memoryRun[memoryCurs++] : null;
+        }
+        if (merger != null) {
+            SortKey entry = merger.next();
+            if (entry != null) {
+                return entry;
+            }
+            merger = null;
+        }
+        while (true) {
+            if (rangeReader != null) {
+                Tuple tuple = rangeReader.next();
+                if (tuple != null) {
+                    return new SortKey(tuple, keyIndex, reverse);
+                }
+                rangeReader.close();
+                rangeReader = null;
+            }
+            if (nextRange >= rangeFiles.size()) {
+                return null;
+            }
+            waitForRange(nextRange);
+            rangeReader = store.reader(rangeFiles.get(nextRange));
+            rangeReader.setReadAhead(ReadAhead.pagesWithin(rangeBuffers - 2));  // The buffers of the first range
+            if (!rangeReader.open()) {
+                System.out.printf("%s: Unable to open merged range\n", rangeFiles.get(nextRange));
+                System.exit(1);
+            }
+            nextRange++;
+        }
+    }
+
+    private void waitForRange(int range) {
+        try {
+            rangeMerges.get(range).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ExternalSort: interrupted while merging");
+            System.exit(1);
+        } catch (ExecutionException e) {
+            System.out.println("ExternalSort: error while merging a range " + e.getCause());
+            System.exit(1);
+        }
+    }
+
     public boolean close() {
+        cancelled = true;
+        for (int x = 0; x < rangeMerges.size(); x++) {
+            waitForRange(x);
+        }
+        if (rangeReader != null) {
+            rangeReader.close();
+        }
         for (int x = 0; x < curr_readers.size(); x++) {
             curr_readers.get(x).close();
         }
+        memoryRun = null;
         deleteTempFiles();
-        return true;
-    }
-
-    private class TupleIndexPair {
-        Tuple tuple;
-        int index;
-
-        private TupleIndexPair(Tuple tuple, int index) {
-            this.tuple = tuple;
-            this.index = index;
+        if (store != null) {
+            store.close();
+            store = null;
         }
+        return true;
     }
 }
@@ -0,0 +1,169 @@
+/**
+ * Hash aggregation with spilling
+ *
+ * The groups are kept in an open-addressing hash table on the grouping
+ * key. Once the table holds as many groups as fit into its buffers, the
+ * tuples of new groups are hashed into partitions in a spill file while
+ * the groups already in the table keep being aggregated. Every partition
+ * is aggregated the same way after the table is returned, so each pass
+ * completes at least a table full of groups.
+ **/
+
+package qp.operators;
+
+import qp.utils.Batch;
+import qp.utils.Tuple;
+
+public class HashAggregate extends Aggregate {
+
+    static int filenum = 0;         // To get unique filenum for this operation
+
+    int capacity;                   // Number of groups the table holds
+    SpillPartitions partitions;     // Partitions the tuples of new groups are spilled into
+
+    /**
+     * Open-addressing hash table of the current pass
+     **/
+    Object[] keys;                  // Grouping key of every slot, null if the slot is free
+    Group[] groups;                 // Running aggregates of every slot
+    int numGroups;                  // Number of groups in the table
+    int slot;                       // Next slot of the table to be returned
+
+    public HashAggregate(Aggregate node) {
+        super(node.getBase(), node.getGroupByList(), node.getAggAttr(), node.getOpType());
+        schema = node.getSchema();
+        aggregatetype = node.getAggregateType();
+        partial = node.isPartial();
+        numBuff = node.getNumBuff();
+    }
+
+    /**
+     * Partitions the tuples of groups that do not fit are hashed into,
+     * * a quarter of the buffers left after the input and output pages
+     **/
+    public static int numPartitions(long numBuff) {
+        return (int) Math.max(1, (numBuff - 2) / 4);
+    }
+
+    /**
+     * Pages of the hash table, the buffers left after the input and
+     * * output pages and the output buffers of the partitions
+     **/
+    public static int tablePages(long numBuff) {
+        return (int) Math.max(1, numBuff - 2 - numPartitions(numBuff));
+    }
+
+    /**
+     * Aggregates the base operator, the table of the
+     * * first pass is ready to be returned afterwards
+     **/
+    public boolean open() {
+        findIndices();
+        int inbatchsize = Math.max(1, Batch.getPageSize() / base.getSchema().getTupleSize());
+        capacity = tablePages(numBuff) * batchsize;
+        filenum++;
+        partitions = new SpillPartitions("HashAggregate", "HAtemp-" + String.valueOf(filenum),
+                inbatchsize, numPartitions(numBuff));
+
+        if (!base.open()) {
+            return false;
+        }
+        startPass();
+        Batch inbatch;
+        while ((inbatch = base.next()) != null) {
+            for (int i = 0; i < inbatch.size(); ++i) {
+                add(inbatch.get(i));
+            }
+        }
+        base.close();
+        partitions.finishPass();
+        return true;
+    }
+
+    /**
+     * Returns the groups of the table page by page, and aggregates
+     * * the next spilled partition once the table is exhausted
+     **/
+    public Batch next() {
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            while (slot < keys.length && keys[slot] == null) {
+                slot++;
+            }
+            if (slot < keys.length) {
+                outbatch.add(result(groups[slot]));
+                slot++;
+                continue;
+            }
+            if (!partitions.hasPending()) {
+                break;
+            }
+            aggregatePartition();
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Empties the table for the next pass
+     **/
+    private void startPass() {
+        int size = SpillPartitions.tableSize(capacity);
+        keys = new Object[size];
+        groups = new Group[size];
+        numGroups = 0;
+        slot = 0;
+    }
+
+    /**
+     * Adds the tuple to its group, or spills it if its group
+     * * is not in the table and the table is full
+     **/
+    private void add(Tuple tuple) {
+        Object key = Join.keyOf(tuple, groupIndex);
+        int mask = keys.length - 1;
+        int i = partitions.tableHash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                accumulate(groups[i], tuple);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if (numGroups < capacity) {
+            keys[i] = key;
+            groups[i] = newGroup(tuple);
+            numGroups++;
+            return;
+        }
+        partitions.spill(tuple, key);
+    }
+
+    /**
+     * Aggregates the next spilled partition into the emptied table
+     **/
+    private void aggregatePartition() {
+        partitions.readNext();
+        startPass();
+        Tuple tuple;
+        while ((tuple = partitions.next()) != null) {
+            add(tuple);
+        }
+        partitions.finishPass();
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+        keys = null;
+        groups = null;
+        return true;
+    }
+}
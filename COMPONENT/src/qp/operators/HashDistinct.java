@@ -0,0 +1,166 @@
+/**
+ * Hash based duplicate elimination with spilling
+ *
+ * The distinct tuples seen so far are kept in an open-addressing hash
+ * set, and a tuple is returned as soon as it turns out to be new. Once
+ * the set holds as many tuples as fit into its buffers, the tuples not
+ * in it are hashed into partitions in a spill file and have duplicates
+ * eliminated the same way after the input, so tuples of values that fit
+ * into the set stream out without waiting for the whole input.
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+
+public class HashDistinct extends Distinct {
+
+    static int filenum = 0;         // To get unique filenum for this operation
+
+    int capacity;                   // Number of tuples the set holds
+    SpillPartitions partitions;     // Partitions the tuples not in the set are spilled into
+    boolean eos;                    // Whether the base and all the partitions are read
+
+    /**
+     * Open-addressing hash set of the current pass
+     **/
+    Object[] keys;                  // Key of the tuple in every slot, null if the slot is free
+    int numKeys;                    // Number of tuples in the set
+
+    public HashDistinct(Distinct node) {
+        super(node.getBase(), node.getProjAttr(), node.getOpType());
+        schema = node.getSchema();
+        distincttype = node.getDistinctType();
+        numBuff = node.getNumBuff();
+    }
+
+    /**
+     * Opens the base operator with an empty set,
+     * * the set takes the buffers HashAggregate gives its table
+     **/
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+
+        ArrayList<Attribute> attributes = base.getSchema().getAttList();
+        compareIndex = new ArrayList<>();
+        for (Attribute attribute : attributes) {
+            compareIndex.add(base.getSchema().indexOf(attribute));
+        }
+        int inbatchsize = Math.max(1, Batch.getPageSize() / base.getSchema().getTupleSize());
+        capacity = HashAggregate.tablePages(numBuff) * batchsize;
+        filenum++;
+        partitions = new SpillPartitions("HashDistinct", "HDtemp-" + String.valueOf(filenum),
+                inbatchsize, HashAggregate.numPartitions(numBuff));
+        eos = false;
+
+        if (!base.open()) {
+            return false;
+        }
+        startPass();
+        inbatch = null;
+        curs = 0;
+        return true;
+    }
+
+    /**
+     * Returns the tuples not seen before as they arrive
+     **/
+    public Batch next() {
+        outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            Tuple tuple = nextTuple();
+            if (tuple == null) {
+                break;
+            }
+            if (add(tuple)) {
+                outbatch.add(tuple);
+            }
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Next tuple of the base, or of the next spilled partition
+     * * once the base is read, null when all are read
+     **/
+    private Tuple nextTuple() {
+        while (!eos) {
+            if (!partitions.isReading()) {
+                if (inbatch != null && curs < inbatch.size()) {
+                    return inbatch.get(curs++);
+                }
+                inbatch = base.next();
+                curs = 0;
+                if (inbatch != null) {
+                    continue;
+                }
+            } else {
+                Tuple tuple = partitions.next();
+                if (tuple != null) {
+                    return tuple;
+                }
+            }
+            partitions.finishPass();
+            if (partitions.hasPending()) {
+                partitions.readNext();
+                startPass();
+            } else {
+                eos = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Empties the set for the next pass
+     **/
+    private void startPass() {
+        keys = new Object[SpillPartitions.tableSize(capacity)];
+        numKeys = 0;
+    }
+
+    /**
+     * Adds the tuple to the set, true if it was not in there. A tuple
+     * * not in the set is spilled instead once the set is full
+     **/
+    private boolean add(Tuple tuple) {
+        Object key = Join.keyOf(tuple, compareIndex);
+        int mask = keys.length - 1;
+        int i = partitions.tableHash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        if (numKeys < capacity) {
+            keys[i] = key;
+            numKeys++;
+            return true;
+        }
+        partitions.spill(tuple, key);
+        return false;
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+        keys = null;
+        inbatch = null;
+        base.close();
+        return true;
+    }
+}
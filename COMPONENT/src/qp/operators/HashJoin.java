@@ -0,0 +1,508 @@
+/**
+ * Hybrid Hash Join algorithm
+ **/
+
+package qp.operators;
+
+import qp.utils.*;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class HashJoin extends Join {
+
+    static int filenum = 0;         // To get unique filenum for this operation
+    public static final int MAXLEVEL = 3;  // Deepest repartitioning level before overflowing partitions are joined in chunks
+
+    int batchsize;                  // Number of tuples per out batch
+    int leftbatchsize;              // Number of tuples per page of the left (build) input
+    ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
+    ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
+    int numPartitions;              // Number of partitions the inputs are hashed into (numBuff - 1)
+    int memPages;                   // Number of pages available for an in-memory hash table
+    int residentTuples;             // Number of build tuples held by the resident first level partitions
+    int spilledCount;               // Number of spilled first level partitions, each holding an output buffer
+    String fileprefix;              // Prefix of the partition files of this operator
+    int tempnum;                    // To get unique partition file names within this operator
+    ArrayList<String> tempFiles;    // Partition files that are still on disk
+
+    Batch outbatch;                 // Buffer page for output
+    HashMap<Object, ArrayList<Tuple>> table;  // In-memory hash table on the build tuples
+
+    /**
+     * The following fields are required while the right input is streamed
+     * * and routed to its partitions (phase 0, with partition 0 kept in memory)
+     **/
+    boolean streaming;              // Whether the right operator is still being consumed
+    Partition[] partitions;         // Partitions of the first level
+    Batch rightbatch;               // Buffer page for right input stream
+    int rcurs;                      // Cursor for right side buffer
+
+    /**
+     * The following fields are required while the spilled partitions are joined
+     **/
+    ArrayDeque<Partition> pending;  // Spilled partitions that still have to be joined
+    Partition current;              // Spilled partition being joined
+    TupleReader buildReader;        // Reader on the build file of the current partition (chunked joins only)
+    TupleReader probeReader;        // Reader on the probe file of the current partition
+
+    Tuple probetuple;               // Right tuple being joined
+    ArrayList<Tuple> matches;       // Left tuples with the same key as probetuple
+    int mcurs;                      // Cursor within matches
+
+    public HashJoin(Join jn) {
+        super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
+        schema = jn.getSchema();
+        jointype = jn.getJoinType();
+        numBuff = jn.getNumBuff();
+    }
+
+    /**
+     * During open finds the index of the join attributes
+     * * Partitions the left hand side, keeping as many partitions in memory as possible
+     * * Opens the right hand side for probing
+     **/
+    public boolean open() {
+        /** select number of tuples per batch **/
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        leftbatchsize = Batch.getPageSize() / left.getSchema().getTupleSize();
+
+        /** find indices attributes of join conditions **/
+        leftindex = new ArrayList<>();
+        rightindex = new ArrayList<>();
+        for (Condition con : conditionList) {
+            Attribute leftattr = con.getLhs();
+            Attribute rightattr = (Attribute) con.getRhs();
+            leftindex.add(left.getSchema().indexOf(leftattr));
+            rightindex.add(right.getSchema().indexOf(rightattr));
+        }
+
+        /** One buffer for the input and one for the output, the rest hold partitions **/
+        numPartitions = numBuff - 1;
+        memPages = numBuff - 2;
+
+        filenum++;
+        fileprefix = "HJtemp-" + String.valueOf(filenum) + "-";
+        tempnum = 0;
+        tempFiles = new ArrayList<>();
+        pending = new ArrayDeque<>();
+
+        if (!left.open())
+            return false;
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; ++i) {
+            partitions[i] = new Partition(0);
+        }
+        residentTuples = 0;
+        spilledCount = 0;
+        Batch leftpage;
+        while ((leftpage = left.next()) != null) {
+            for (int i = 0; i < leftpage.size(); ++i) {
+                Tuple tuple = leftpage.get(i);
+                Partition partition = partitions[partitionOf(keyOf(tuple, leftindex), 0)];
+                partition.addBuild(tuple);
+                if (partition.isResident()) {
+                    residentTuples++;
+                    /** A spill frees any number of tuples, so check the pages on every insert **/
+                    ensureMemoryBudget();
+                }
+            }
+        }
+        left.close();
+
+        /** The partitions that survived in memory make up the hash table for the right input **/
+        table = new HashMap<>();
+        for (Partition partition : partitions) {
+            if (partition.isResident()) {
+                buildTable(partition.tuples);
+                partition.tuples = null;
+            } else {
+                partition.closeBuild();
+                partition.openProbe();
+            }
+        }
+
+        if (!right.open())
+            return false;
+        streaming = true;
+        rightbatch = null;
+        rcurs = 0;
+        matches = null;
+        return true;
+    }
+
+    /**
+     * Spills partitions until the resident partitions and the output
+     * * buffers of the spilled partitions fit into the buffer budget.
+     * * Partition 0 is only spilled when no other partition can be.
+     **/
+    private void ensureMemoryBudget() {
+        while (residentTuples > 0 && (residentTuples + leftbatchsize - 1) / leftbatchsize + spilledCount > memPages) {
+            Partition victim = null;
+            for (int i = 1; i < numPartitions; ++i) {
+                if (partitions[i].isResident() && (victim == null || partitions[i].numBuild > victim.numBuild)) {
+                    victim = partitions[i];
+                }
+            }
+            if (victim == null || victim.numBuild == 0) {
+                victim = partitions[0];
+            }
+            residentTuples -= victim.numBuild;
+            spilledCount++;
+            victim.spill();
+        }
+    }
+
+    /**
+     * from input buffers selects the tuples satisfying join condition
+     * * And returns a page of output tuples
+     **/
+    public Batch next() {
+        outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (matches != null) {
+                while (mcurs < matches.size()) {
+                    outbatch.add(matches.get(mcurs).joinWith(probetuple));
+                    mcurs++;
+                    if (outbatch.isFull()) {
+                        return outbatch;
+                    }
+                }
+                matches = null;
+            }
+            probetuple = nextProbe();
+            if (probetuple == null) {
+                break;
+            }
+            matches = table.get(keyOf(probetuple, rightindex));
+            mcurs = 0;
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /**
+     * Returns the next right tuple whose partition is in memory.
+     * * Right tuples of spilled partitions are written out on the way,
+     * * and spilled partitions are loaded once the right input is exhausted.
+     **/
+    private Tuple nextProbe() {
+        while (streaming) {
+            if (rightbatch == null || rcurs >= rightbatch.size()) {
+                rightbatch = right.next();
+                rcurs = 0;
+                if (rightbatch == null) {
+                    finishStreaming();
+                    break;
+                }
+                continue;
+            }
+            Tuple tuple = rightbatch.get(rcurs);
+            rcurs++;
+            Partition partition = partitions[partitionOf(keyOf(tuple, rightindex), 0)];
+            if (partition.isResident()) {
+                return tuple;
+            }
+            partition.addProbe(tuple);
+        }
+
+        while (current != null) {
+            Tuple tuple = probeReader.next();
+            if (tuple != null) {
+                return tuple;
+            }
+            probeReader.close();
+            if (buildReader != null && !buildReader.isEOF()) {
+                /** Chunked join, the next chunk of the build file is joined with the whole probe file **/
+                loadChunk();
+                openProbeReader();
+            } else {
+                finishPartition();
+                loadNextPartition();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The right input is exhausted, the spilled partitions are joined next
+     **/
+    private void finishStreaming() {
+        streaming = false;
+        right.close();
+        rightbatch = null;
+        table = null;
+        for (Partition partition : partitions) {
+            if (!partition.isResident()) {
+                partition.closeProbe();
+                pending.push(partition);
+            }
+        }
+        partitions = null;
+        loadNextPartition();
+    }
+
+    /**
+     * Takes the next spilled partition and prepares the hash table for it.
+     * * Partitions whose build side does not fit into memory are recursively
+     * * repartitioned, or joined in chunks when the maximum level is reached.
+     **/
+    private void loadNextPartition() {
+        current = null;
+        while (!pending.isEmpty()) {
+            Partition partition = pending.pop();
+            if (partition.numBuild == 0 || partition.numProbe == 0) {
+                partition.delete();
+                continue;
+            }
+            if (partition.buildPages() > memPages && partition.level < MAXLEVEL) {
+                repartition(partition);
+                continue;
+            }
+            current = partition;
+            buildReader = new TupleReader(partition.buildFile, leftbatchsize);
+            if (!buildReader.open()) {
+                System.out.println("HashJoin: Error in reading partition file");
+                System.exit(1);
+            }
+            loadChunk();
+            if (buildReader.isEOF()) {
+                buildReader.close();
+                buildReader = null;
+            }
+            openProbeReader();
+            return;
+        }
+    }
+
+    /**
+     * Hashes both sides of the partition into partitions of the next level
+     **/
+    private void repartition(Partition partition) {
+        int level = partition.level + 1;
+        Partition[] subpartitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; ++i) {
+            subpartitions[i] = new Partition(level);
+            subpartitions[i].spill();
+        }
+        TupleReader reader = new TupleReader(partition.buildFile, leftbatchsize);
+        if (!reader.open()) {
+            System.out.println("HashJoin: Error in reading partition file");
+            System.exit(1);
+        }
+        Tuple tuple;
+        while ((tuple = reader.next()) != null) {
+            subpartitions[partitionOf(keyOf(tuple, leftindex), level)].addBuild(tuple);
+        }
+        reader.close();
+        for (Partition subpartition : subpartitions) {
+            subpartition.closeBuild();
+            subpartition.openProbe();
+        }
+
+        reader = new TupleReader(partition.probeFile, partition.probebatchsize);
+        if (!reader.open()) {
+            System.out.println("HashJoin: Error in reading partition file");
+            System.exit(1);
+        }
+        while ((tuple = reader.next()) != null) {
+            subpartitions[partitionOf(keyOf(tuple, rightindex), level)].addProbe(tuple);
+        }
+        reader.close();
+        partition.delete();
+        for (Partition subpartition : subpartitions) {
+            subpartition.closeProbe();
+            pending.push(subpartition);
+        }
+    }
+
+    /**
+     * Loads at most memPages pages of the current build file into the hash table
+     **/
+    private void loadChunk() {
+        table = new HashMap<>();
+        int capacity = memPages * leftbatchsize;
+        int count = 0;
+        Tuple tuple;
+        while (count < capacity && (tuple = buildReader.next()) != null) {
+            ArrayList<Tuple> bucket = table.computeIfAbsent(keyOf(tuple, leftindex), k -> new ArrayList<>());
+            bucket.add(tuple);
+            count++;
+        }
+    }
+
+    private void openProbeReader() {
+        probeReader = new TupleReader(current.probeFile, current.probebatchsize);
+        if (!probeReader.open()) {
+            System.out.println("HashJoin: Error in reading partition file");
+            System.exit(1);
+        }
+    }
+
+    private void finishPartition() {
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        probeReader = null;
+        table = null;
+        current.delete();
+    }
+
+    private void buildTable(ArrayList<Tuple> tuples) {
+        for (Tuple tuple : tuples) {
+            ArrayList<Tuple> bucket = table.computeIfAbsent(keyOf(tuple, leftindex), k -> new ArrayList<>());
+            bucket.add(tuple);
+        }
+    }
+
+    /**
+     * Partition of the key at the given level, every level
+     * * uses a differently seeded hash function
+     **/
+    private int partitionOf(Object key, int level) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, numPartitions);
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        if (streaming) {
+            right.close();
+            streaming = false;
+        }
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                partition.closeBuild();
+                partition.closeProbe();
+            }
+            partitions = null;
+        }
+        for (String fname : tempFiles) {
+            File f = new File(fname);
+            f.delete();
+        }
+        tempFiles.clear();
+        pending.clear();
+        current = null;
+        table = null;
+        return true;
+    }
+
+    /**
+     * A partition of both inputs, either kept in memory (build side only)
+     * * or spilled to a pair of files through TupleWriters
+     **/
+    private class Partition {
+        int level;                   // Level of (re)partitioning that produced this partition
+        boolean resident;            // Whether the build side is kept in memory
+        ArrayList<Tuple> tuples;     // Build tuples while the partition is in memory
+        String buildFile;            // File of build tuples once spilled
+        String probeFile;            // File of probe tuples once spilled
+        TupleWriter buildWriter;
+        TupleWriter probeWriter;
+        int probebatchsize;          // Number of tuples per page of the probe file
+        int numBuild = 0;            // Number of build tuples in the partition
+        int numProbe = 0;            // Number of probe tuples in the partition
+
+        private Partition(int level) {
+            this.level = level;
+            this.resident = true;
+            this.tuples = new ArrayList<>();
+            this.probebatchsize = Batch.getPageSize() / right.getSchema().getTupleSize();
+        }
+
+        private boolean isResident() {
+            return resident;
+        }
+
+        /** Number of pages of build tuples in this partition **/
+        private int buildPages() {
+            return (numBuild + leftbatchsize - 1) / leftbatchsize;
+        }
+
+        private void addBuild(Tuple tuple) {
+            numBuild++;
+            if (resident) {
+                tuples.add(tuple);
+            } else {
+                buildWriter.next(tuple);
+            }
+        }
+
+        private void addProbe(Tuple tuple) {
+            numProbe++;
+            probeWriter.next(tuple);
+        }
+
+        /** Writes the resident build tuples out and keeps only an output buffer **/
+        private void spill() {
+            buildFile = fileprefix + String.valueOf(tempnum++);
+            tempFiles.add(buildFile);
+            buildWriter = new TupleWriter(buildFile, leftbatchsize);
+            if (!buildWriter.open()) {
+                System.out.println("HashJoin: Error writing to partition file");
+                System.exit(1);
+            }
+            for (Tuple tuple : tuples) {
+                buildWriter.next(tuple);
+            }
+            tuples = null;
+            resident = false;
+        }
+
+        private void closeBuild() {
+            if (buildWriter != null) {
+                buildWriter.close();
+                buildWriter = null;
+            }
+        }
+
+        private void openProbe() {
+            probeFile = fileprefix + String.valueOf(tempnum++);
+            tempFiles.add(probeFile);
+            probeWriter = new TupleWriter(probeFile, probebatchsize);
+            if (!probeWriter.open()) {
+                System.out.println("HashJoin: Error writing to partition file");
+                System.exit(1);
+            }
+        }
+
+        private void closeProbe() {
+            if (probeWriter != null) {
+                probeWriter.close();
+                probeWriter = null;
+            }
+        }
+
+        private void delete() {
+            for (String fname : new String[]{buildFile, probeFile}) {
+                if (fname != null) {
+                    File f = new File(fname);
+                    f.delete();
+                    tempFiles.remove(fname);
+                }
+            }
+        }
+    }
+}
@@ -4,8 +4,10 @@
 
 package qp.operators;
 
+import qp.utils.Attribute;
 import qp.utils.Condition;
 import qp.utils.Schema;
+import qp.utils.Tuple;
 
 import java.util.ArrayList;
 
@@ -102,6 +104,24 @@ public class Join extends Operator {
         conditionList.add(condition);
     }
 
+    /**
+     * Key of the tuple on the join attributes, the value itself for a
+     * * single INT or STRING attribute and a Key over the tuple otherwise
+     **/
+    static Object keyOf(Tuple tuple, ArrayList<Integer> index) {
+        if (index.size() == 1) {
+            int col = index.get(0);
+            int type = tuple.typeAt(col);
+            if (type == Attribute.INT) {
+                return tuple.getInt(col);
+            }
+            if (type == Attribute.STRING) {
+                return tuple.getString(col);
+            }
+        }
+        return new Key(tuple, index);
+    }
+
     public Object clone() {
         Operator newleft = (Operator) left.clone();
         Operator newright = (Operator) right.clone();
@@ -118,4 +138,44 @@ public class Join extends Operator {
         return jn;
     }
 
+    /**
+     * Key over the given attributes of a tuple, its values are
+     * * compared in place with Tuple.equalsAt instead of being copied
+     **/
+    static final class Key {
+        final Tuple tuple;               // Tuple the key belongs to
+        final ArrayList<Integer> index;  // Attributes of the key
+        final int hash;                  // Hash of the values of the key
+
+        Key(Tuple tuple, ArrayList<Integer> index) {
+            this.tuple = tuple;
+            this.index = index;
+            int h = 1;
+            for (int col : index) {
+                String value = (tuple.typeAt(col) == Attribute.STRING) ? tuple.getString(col) : null;
+                h = 31 * h + ((value != null) ? value.hashCode() : tuple.getInt(col));
+            }
+            this.hash = h;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || index.size() != other.index.size()) {
+                return false;
+            }
+            for (int i = 0; i < index.size(); ++i) {
+                if (!tuple.equalsAt(index.get(i), other.tuple, other.index.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
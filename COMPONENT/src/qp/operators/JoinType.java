@@ -14,6 +14,13 @@ public class JoinType {
     public static final int HASHJOIN = 3;
 
     public static int numJoinTypes() {
-        return 3;
+        return 4;
+    }
+
+    /**
+     * Whether the join algorithm runs within the given number of buffers
+     **/
+    public static boolean fitsBuffers(int joinType, long numBuff) {
+        return joinType != SORTMERGE || SortMergeJoin.fitsBuffers(numBuff);
     }
 }
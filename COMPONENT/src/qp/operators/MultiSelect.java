@@ -0,0 +1,53 @@
+/**
+ * Select Operation with several conditions on the same input
+ **/
+
+package qp.operators;
+
+import qp.utils.Condition;
+import qp.utils.Schema;
+import qp.utils.TuplePredicate;
+
+import java.util.ArrayList;
+
+/**
+ * Replaces a stack of Select operators, so that every page is only
+ * scanned once and a tuple stops at the first condition it fails.
+ * The conditions are evaluated in the order of the list
+ */
+public class MultiSelect extends Select {
+
+    ArrayList<Condition> conditions;  // Select conditions in order of evaluation
+
+    public MultiSelect(Operator base, ArrayList<Condition> conditions, int type) {
+        super(base, conditions.get(0), type);
+        this.conditions = conditions;
+    }
+
+    public ArrayList<Condition> getConditionList() {
+        return conditions;
+    }
+
+    public void setConditionList(ArrayList<Condition> conditions) {
+        this.conditions = conditions;
+        this.con = conditions.get(0);
+    }
+
+    /**
+     * Compiles the conjunction of all the conditions
+     **/
+    protected TuplePredicate compilePredicate() {
+        return TuplePredicate.compile(conditions, schema);
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        ArrayList<Condition> newconditions = new ArrayList<>();
+        for (Condition cn : conditions) {
+            newconditions.add((Condition) cn.clone());
+        }
+        MultiSelect newsel = new MultiSelect(newbase, newconditions, optype);
+        newsel.setSchema((Schema) newbase.getSchema().clone());
+        return newsel;
+    }
+}
@@ -12,5 +12,6 @@ public class OpType {
     public static final int JOIN = 3;
     public static final int SORT = 4;
     public static final int DISTINCT = 5;
+    public static final int AGGREGATE = 6;
 
 }
@@ -4,7 +4,10 @@
 package qp.operators;
 
 import qp.utils.Batch;
+import qp.utils.ColumnBatch;
+import qp.utils.PageFileWriter;
 import qp.utils.Schema;
+import qp.utils.Tuple;
 
 public class Operator {
 
@@ -43,6 +46,26 @@ public class Operator {
         return null;
     }
 
+    /**
+     * Whether the operator produces column batches natively, only then
+     * * the parent operator should consume it through nextVector()
+     **/
+    public boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Next page of the result column by column, by default
+     * * the batch returned by next() is stored column by column
+     **/
+    public ColumnBatch nextVector() {
+        Batch batch = next();
+        if (batch == null) {
+            return null;
+        }
+        return ColumnBatch.fromBatch(batch, Tuple.typeCodes(PageFileWriter.typesOf(schema)));
+    }
+
     public boolean close() {
         return true;
     }
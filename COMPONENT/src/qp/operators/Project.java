@@ -6,6 +6,7 @@ package qp.operators;
 
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.ColumnBatch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
 
@@ -84,6 +85,16 @@ public class Project extends Operator {
      * Read next tuple from operator
      */
     public Batch next() {
+        if (base.isVectorized()) {
+            /** The projected columns are only turned into tuples here **/
+            ColumnBatch columns = nextVector();
+            if (columns == null) {
+                return null;
+            }
+            outbatch = new Batch(Math.max(batchsize, columns.getNumSelected()));
+            columns.addTo(outbatch, 0);
+            return outbatch;
+        }
         outbatch = new Batch(batchsize);
         /** all the tuples in the inbuffer goes to the output buffer **/
         inbatch = base.next();
@@ -96,17 +107,27 @@ public class Project extends Operator {
             Tuple basetuple = inbatch.get(i);
             //Debug.PPrint(basetuple);
             //System.out.println();
-            ArrayList<Object> present = new ArrayList<>();
-            for (int j = 0; j < attrset.size(); j++) {
-                Object data = basetuple.dataAt(attrIndex[j]);
-                present.add(data);
-            }
-            Tuple outtuple = new Tuple(present);
+            Tuple outtuple = basetuple.project(attrIndex);
             outbatch.add(outtuple);
         }
         return outbatch;
     }
 
+    public boolean isVectorized() {
+        return base.isVectorized();
+    }
+
+    /**
+     * Re-points the projected columns of the base column batch
+     **/
+    public ColumnBatch nextVector() {
+        ColumnBatch columns = base.nextVector();
+        if (columns == null) {
+            return null;
+        }
+        return columns.project(attrIndex);
+    }
+
     /**
      * Close the operator
      */
@@ -0,0 +1,180 @@
+/**
+ * Aggregation without grouping
+ *
+ * The whole input forms a single group, so the aggregates are kept
+ * running in the primitive accumulators of one Group while the input
+ * streams past page by page, and exactly one tuple is returned, even
+ * for an empty input. A COUNT directly over a base table is taken from
+ * the tuple count of its statistics file when that is up to date.
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.ColumnBatch;
+import qp.utils.Tuple;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+public class ScalarAggregate extends Aggregate {
+
+    Group group;                    // Running aggregates of the whole input
+    boolean counted;                // Whether the result is taken from the statistics, the base is not read
+    boolean done;                   // Whether the result tuple has been returned
+
+    public ScalarAggregate(Aggregate node) {
+        super(node.getBase(), node.getGroupByList(), node.getAggAttr(), node.getOpType());
+        schema = node.getSchema();
+        aggregatetype = node.getAggregateType();
+        numBuff = node.getNumBuff();
+    }
+
+    /**
+     * Opens the base operator, unless the result
+     * * is known from the statistics of the base table
+     **/
+    public boolean open() {
+        findIndices();
+        group = new Group(new Tuple(new ArrayList<>()), colIndex.length);
+        done = false;
+        long numtuples = countFromStatistics();
+        counted = numtuples >= 0;
+        if (counted) {
+            for (int i = 0; i < colIndex.length; ++i) {
+                group.counts[i] = numtuples;
+            }
+            return true;
+        }
+        return base.open();
+    }
+
+    /**
+     * Aggregates the whole input on the first call and returns the result tuple
+     **/
+    public Batch next() {
+        if (done) {
+            return null;
+        }
+        if (!counted) {
+            if (base.isVectorized()) {
+                ColumnBatch columns;
+                while ((columns = base.nextVector()) != null) {
+                    accumulate(columns);
+                }
+            } else {
+                Batch inbatch;
+                while ((inbatch = base.next()) != null) {
+                    for (int i = 0; i < inbatch.size(); ++i) {
+                        accumulate(group, inbatch.get(i));
+                    }
+                }
+            }
+        }
+        done = true;
+        Batch outbatch = new Batch(batchsize);
+        outbatch.add(result(group));
+        return outbatch;
+    }
+
+    /**
+     * Adds the selected rows of the column batch to the aggregates,
+     * * reading the value arrays of the columns directly
+     **/
+    private void accumulate(ColumnBatch columns) {
+        int n = columns.getNumSelected();
+        for (int i = 0; i < colIndex.length; ++i) {
+            int col = colIndex[i];
+            long seen = group.counts[i];
+            group.counts[i] += n;
+            if (colAgg[i] == Attribute.COUNT || n == 0) {
+                continue;
+            }
+            int type = columns.typeAt(col);
+            if (type == Attribute.STRING) {
+                for (int r = 0; r < n; ++r, ++seen) {
+                    String value = columns.getString(col, columns.selectedAt(r));
+                    if (seen == 0 || (colAgg[i] == Attribute.MAX) == (value.compareTo(group.strings[i]) > 0)) {
+                        group.strings[i] = value;
+                    }
+                }
+                continue;
+            }
+            int[] ints = columns.getIntColumn(col);
+            float[] floats = columns.getFloatColumn(col);
+            double acc = group.numbers[i];
+            for (int r = 0; r < n; ++r, ++seen) {
+                int row = columns.selectedAt(r);
+                double value = (type == Attribute.INT) ? ints[row] : floats[row];
+                switch (colAgg[i]) {
+                    case Attribute.MAX:
+                        acc = (seen == 0) ? value : Math.max(acc, value);
+                        break;
+                    case Attribute.MIN:
+                        acc = (seen == 0) ? value : Math.min(acc, value);
+                        break;
+                    default:
+                        acc += value;
+                        break;
+                }
+            }
+            group.numbers[i] = acc;
+        }
+    }
+
+    /**
+     * Number of tuples of the base table if the base operator is a scan,
+     * * every aggregate is a COUNT and both the statistics file and the
+     * * table are at least as new as the text file they are made from,
+     * * -1 otherwise. Base tables hold no missing values, so the COUNT
+     * * of any column is the number of tuples
+     **/
+    private long countFromStatistics() {
+        if (base.getOpType() != OpType.SCAN) {
+            return -1;
+        }
+        for (int agg : colAgg) {
+            if (agg != Attribute.COUNT) {
+                return -1;
+            }
+        }
+        String tablename = ((Scan) base).getTabName();
+        File statfile = new File(tablename + ".stat");
+        File txtfile = new File(tablename + ".txt");
+        File tblfile = new File(tablename + ".tbl");
+        if (!statfile.exists() || !txtfile.exists()
+                || statfile.lastModified() < txtfile.lastModified()
+                || tblfile.lastModified() < txtfile.lastModified()) {
+            return -1;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(statfile))) {
+            String line = in.readLine();
+            if (line == null) {
+                return -1;
+            }
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            if (tokenizer.countTokens() != 1) {
+                return -1;
+            }
+            return Long.parseLong(tokenizer.nextToken());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        if (!counted) {
+            base.close();
+        }
+        group = null;
+        return true;
+    }
+}
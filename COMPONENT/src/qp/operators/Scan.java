@@ -5,6 +5,9 @@
 package qp.operators;
 
 import qp.utils.Batch;
+import qp.utils.ColumnBatch;
+import qp.utils.PageFileReader;
+import qp.utils.ReadAhead;
 import qp.utils.Schema;
 import qp.utils.Tuple;
 
@@ -23,6 +26,23 @@ public class Scan extends Operator {
     int batchsize;         // Number of tuples per out batch;
     ObjectInputStream in;  // Input file being scanned
     boolean eos;           // To indicate whether end of stream reached or not
+    boolean eof;           // Whether the object stream has been read to its end
+
+    /**
+     * The following fields are used when the table
+     * * is stored in the binary page format
+     **/
+    PageFileReader pages;  // Input page file being scanned
+    Batch page;            // Decoded tuples of the current file page
+    int pcurs;             // Cursor within the current file page
+
+    /**
+     * With ReadAhead.setDepth() the file is read ahead by a background
+     * * thread, the pages read ahead are in addition to the buffers of the
+     * * operator consuming the scan
+     **/
+    ReadAhead<Batch> aheadPages;           // File pages read ahead, also stream batches
+    ReadAhead<ColumnBatch> aheadColumns;   // File pages read ahead column by column
 
     /**
      * Constructor - just save filename
@@ -45,6 +65,19 @@ public class Scan extends Operator {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
         eos = false;
+        eof = false;
+        aheadPages = null;
+        aheadColumns = null;
+        if (PageFileReader.isPageFile(filename)) {
+            pages = new PageFileReader(filename);
+            page = null;
+            pcurs = 0;
+            if (!pages.open()) {
+                System.err.println(" Error reading " + filename);
+                return false;
+            }
+            return true;
+        }
         try {
             in = new ObjectInputStream(new FileInputStream(filename));
         } catch (Exception e) {
@@ -63,6 +96,39 @@ public class Scan extends Operator {
             close();
             return null;
         }
+        if (pages != null) {
+            return nextPage();
+        }
+        if (ReadAhead.getDepth() > 0) {
+            if (aheadPages == null) {
+                aheadPages = new ReadAhead<Batch>(ReadAhead.getDepth()) {
+                    protected Batch read() {
+                        return readStreamBatch();
+                    }
+                };
+            }
+            Batch tuples = aheadPages.next();
+            if (tuples == null) {
+                eos = true;
+                close();
+            }
+            return tuples;
+        }
+        Batch tuples = readStreamBatch();
+        if (tuples == null) {
+            eos = true;
+            close();
+        }
+        return tuples;
+    }
+
+    /**
+     * Reads a batch of tuples from the object stream, null at the end of the file
+     **/
+    private Batch readStreamBatch() {
+        if (eof) {
+            return null;
+        }
         Batch tuples = new Batch(batchsize);
         while (!tuples.isFull()) {
             try {
@@ -75,8 +141,8 @@ public class Scan extends Operator {
                 /** At this point incomplete page is sent and at next call it considered
                  ** as end of file
                  **/
-                eos = true;
-                return tuples;
+                eof = true;
+                return tuples.isEmpty() ? null : tuples;
             } catch (IOException e) {
                 System.err.println("Scan:Error reading " + filename);
                 System.exit(1);
@@ -85,11 +151,99 @@ public class Scan extends Operator {
         return tuples;
     }
 
+    /**
+     * Fills a batch from the decoded file pages. When the table was converted
+     * * with the same page size, every batch is exactly one page of the file
+     **/
+    private Batch nextPage() {
+        Batch tuples = new Batch(batchsize);
+        while (!tuples.isFull()) {
+            if (page == null || pcurs >= page.size()) {
+                page = readFilePage();
+                pcurs = 0;
+                if (page == null) {
+                    eos = true;
+                    break;
+                }
+            }
+            tuples.add(page.get(pcurs));
+            pcurs++;
+        }
+        if (tuples.isEmpty()) {
+            close();
+            return null;
+        }
+        return tuples;
+    }
+
+    /** Next page of the file, read ahead if enabled **/
+    private Batch readFilePage() {
+        if (ReadAhead.getDepth() == 0) {
+            return pages.readPage();
+        }
+        if (aheadPages == null) {
+            final PageFileReader file = pages;
+            aheadPages = new ReadAhead<Batch>(ReadAhead.getDepth()) {
+                protected Batch read() {
+                    return file.readPage();
+                }
+            };
+        }
+        return aheadPages.next();
+    }
+
+    /**
+     * Tables in the page format are read column by column
+     **/
+    public boolean isVectorized() {
+        return pages != null;
+    }
+
+    /**
+     * Next page of the file column by column
+     **/
+    public ColumnBatch nextVector() {
+        if (pages == null) {
+            return super.nextVector();
+        }
+        if (ReadAhead.getDepth() > 0 && aheadColumns == null && !eos) {
+            final PageFileReader file = pages;
+            aheadColumns = new ReadAhead<ColumnBatch>(ReadAhead.getDepth()) {
+                protected ColumnBatch read() {
+                    return file.readColumns();
+                }
+            };
+        }
+        while (!eos) {
+            ColumnBatch columns = (aheadColumns != null) ? aheadColumns.next() : pages.readColumns();
+            if (columns == null) {
+                eos = true;
+            } else if (columns.getNumRows() > 0) {
+                return columns;
+            }
+        }
+        close();
+        return null;
+    }
+
     /**
      * Close the file.. This routine is called when the end of filed
      * * is already reached
      **/
     public boolean close() {
+        /** The background readers stop before the file is closed **/
+        if (aheadPages != null) {
+            aheadPages.close();
+            aheadPages = null;
+        }
+        if (aheadColumns != null) {
+            aheadColumns.close();
+            aheadColumns = null;
+        }
+        if (pages != null) {
+            page = null;
+            return pages.close();
+        }
         try {
             in.close();
         } catch (IOException e) {
@@ -6,6 +6,8 @@ package qp.operators;
 
 import qp.utils.*;
 
+import java.util.ArrayList;
+
 public class Select extends Operator {
 
     Operator base;  // Base operator
@@ -20,6 +22,15 @@ public class Select extends Operator {
     Batch inbatch;   // This is the current input buffer
     Batch outbatch;  // This is the current output buffer
     int start;       // Cursor position in the input buffer
+    TuplePredicate predicate;  // Condition compiled against the schema when opened
+
+    /**
+     * The following fields are used when the base operator
+     * * produces column batches
+     **/
+    boolean vectorized;    // Whether the base operator is consumed column by column
+    ColumnBatch invector;  // This is the current input column batch
+    int vcurs;             // Cursor within the selected rows of the input column batch
 
     /**
      * constructor
@@ -46,6 +57,15 @@ public class Select extends Operator {
         this.con = cn;
     }
 
+    /**
+     * Conditions evaluated by this operator
+     **/
+    public ArrayList<Condition> getConditionList() {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        conditions.add(con);
+        return conditions;
+    }
+
     /**
      * Opens the connection to the base operator
      **/
@@ -57,10 +77,21 @@ public class Select extends Operator {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
 
-        if (base.open())
-            return true;
-        else
+        if (!base.open())
             return false;
+
+        vectorized = base.isVectorized();
+        invector = null;
+        vcurs = 0;
+        predicate = compilePredicate();
+        return true;
+    }
+
+    /**
+     * Compiles the condition against the schema
+     **/
+    protected TuplePredicate compilePredicate() {
+        return TuplePredicate.compile(con, schema);
     }
 
     /**
@@ -78,6 +109,22 @@ public class Select extends Operator {
         /** An output buffer is initiated **/
         outbatch = new Batch(batchsize);
 
+        if (vectorized) {
+            /** Only the selected rows of the column batches are turned into tuples **/
+            while (!outbatch.isFull()) {
+                if (invector == null || vcurs == invector.getNumSelected()) {
+                    invector = nextVector();
+                    vcurs = 0;
+                    if (invector == null) {
+                        eos = true;
+                        return outbatch;
+                    }
+                }
+                vcurs = invector.addTo(outbatch, vcurs);
+            }
+            return outbatch;
+        }
+
         /** keep on checking the incoming pages until
          ** the output buffer is full
          **/
@@ -114,6 +161,25 @@ public class Select extends Operator {
         return outbatch;
     }
 
+    public boolean isVectorized() {
+        return base.isVectorized();
+    }
+
+    /**
+     * Narrows the selection vector of the next column batches of the base
+     * * operator, batches without any selected row are skipped
+     **/
+    public ColumnBatch nextVector() {
+        ColumnBatch columns;
+        while ((columns = base.nextVector()) != null) {
+            predicate.select(columns);
+            if (columns.getNumSelected() > 0) {
+                return columns;
+            }
+        }
+        return null;
+    }
+
     /**
      * closes the output connection
      * * i.e., no more pages to output
@@ -128,95 +194,7 @@ public class Select extends Operator {
      * * the present tuple
      **/
     protected boolean checkCondition(Tuple tuple) {
-        Attribute attr = con.getLhs();
-        int index = schema.indexOf(attr);
-        int datatype = schema.typeOf(attr);
-        Object srcValue = tuple.dataAt(index);
-        int exprtype = con.getExprType();
-
-        if (datatype == Attribute.INT) {
-            int srcVal = ((Integer) srcValue).intValue();
-            int checkVal = 0;
-            if (con.getRhs() instanceof String) {
-                checkVal = Integer.parseInt((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                checkVal = ((Integer) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))).intValue();
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (srcVal < checkVal)
-                    return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (srcVal > checkVal)
-                    return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (srcVal <= checkVal)
-                    return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (srcVal >= checkVal)
-                    return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (srcVal == checkVal)
-                    return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (srcVal != checkVal)
-                    return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        } else if (datatype == Attribute.STRING) {
-            String srcVal = (String) srcValue;
-            int flag = 0;
-            if (con.getRhs() instanceof String) {
-                flag = srcVal.compareTo((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                flag = srcVal.compareTo(((String) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))));
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (flag < 0) return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (flag > 0) return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (flag <= 0) return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (flag >= 0) return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (flag == 0) return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (flag != 0) return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        } else if (datatype == Attribute.REAL) {
-            float srcVal = ((Float) srcValue).floatValue();
-            float checkVal = 0;
-            if (con.getRhs() instanceof String) {
-                checkVal = Float.parseFloat((String) con.getRhs());
-            } else if (con.getRhs() instanceof Attribute) {
-                checkVal = ((Float) tuple.dataAt(schema.indexOf((Attribute) con.getRhs()))).floatValue();
-            } else {
-                System.out.println("Select: Malformed condition");
-            }
-            if (exprtype == Condition.LESSTHAN) {
-                if (srcVal < checkVal) return true;
-            } else if (exprtype == Condition.GREATERTHAN) {
-                if (srcVal > checkVal) return true;
-            } else if (exprtype == Condition.LTOE) {
-                if (srcVal <= checkVal) return true;
-            } else if (exprtype == Condition.GTOE) {
-                if (srcVal >= checkVal) return true;
-            } else if (exprtype == Condition.EQUAL) {
-                if (srcVal == checkVal) return true;
-            } else if (exprtype == Condition.NOTEQUAL) {
-                if (srcVal != checkVal) return true;
-            } else {
-                System.out.println("Select: Incorrect condition operator");
-            }
-        }
-        return false;
+        return predicate.test(tuple);
     }
 
     public Object clone() {
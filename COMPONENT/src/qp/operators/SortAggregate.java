@@ -0,0 +1,183 @@
+/**
+ * Sort based aggregation
+ *
+ * The input is sorted on the grouping attributes with ExternalSort, unless
+ * it already comes ordered on them, and every group is aggregated as it
+ * streams past. Only the running aggregates of the current group are held,
+ * so the memory used does not depend on the number of groups.
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Condition;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+
+public class SortAggregate extends Aggregate {
+
+    ExternalSort sorted;            // Sort of the base operator, null if the base is already grouped
+    Operator input;                 // Operator the grouped tuples are read from
+    Batch inbatch;                  // Buffer page for the grouped input
+    int curs;                       // Cursor for input buffer
+    boolean eos;                    // Whether end of stream (input) is reached
+    Group group;                    // Running aggregates of the current group
+    Tuple groupTuple;               // First tuple of the current group
+
+    public SortAggregate(Aggregate node) {
+        super(node.getBase(), node.getGroupByList(), node.getAggAttr(), node.getOpType());
+        schema = node.getSchema();
+        aggregatetype = node.getAggregateType();
+        partial = node.isPartial();
+        numBuff = node.getNumBuff();
+    }
+
+    /**
+     * Whether the tuples the operator returns are ordered on a sequence of
+     * * attributes starting with exactly the given ones, so that the tuples
+     * * of every group on them are adjacent. A sort merge join returns its
+     * * tuples in the order of its join attributes on either side
+     **/
+    public static boolean isGroupedOn(Operator node, ArrayList<Attribute> attrs) {
+        if (attrs.isEmpty()) {
+            return false;
+        }
+        switch (node.getOpType()) {
+            case OpType.SELECT:
+                return isGroupedOn(((Select) node).getBase(), attrs);
+            case OpType.PROJECT:
+                return isGroupedOn(((Project) node).getBase(), attrs);
+            case OpType.JOIN:
+                Join join = (Join) node;
+                ArrayList<Condition> conditions = join.getConditionList();
+                if (join.getJoinType() != JoinType.SORTMERGE || attrs.size() > conditions.size()) {
+                    return false;
+                }
+                for (Attribute attr : attrs) {
+                    if (!joinsOn(conditions, attrs.size(), attr)) {
+                        return false;
+                    }
+                }
+                for (int i = 0; i < attrs.size(); ++i) {
+                    if (!attrs.contains(conditions.get(i).getLhs()) && !attrs.contains(conditions.get(i).getRhs())) {
+                        return false;
+                    }
+                }
+                return true;
+            case OpType.AGGREGATE:
+                Aggregate aggregate = (Aggregate) node;
+                return aggregate.getAggregateType() == AggregateType.SORT
+                        && attrs.size() == aggregate.getGroupByList().size()
+                        && attrs.containsAll(aggregate.getGroupByList());
+            default:
+                return false;
+        }
+    }
+
+    /** Whether the attribute is on either side of one of the first count join conditions **/
+    private static boolean joinsOn(ArrayList<Condition> conditions, int count, Attribute attr) {
+        for (int i = 0; i < count; ++i) {
+            if (attr.equals(conditions.get(i).getLhs()) || attr.equals(conditions.get(i).getRhs())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts the base operator on the grouping attributes
+     * * unless its tuples already come grouped
+     **/
+    public boolean open() {
+        findIndices();
+        if (isGroupedOn(base, groupbylist)) {
+            sorted = null;
+            input = base;
+        } else {
+            sorted = new ExternalSort("aggregate", base, groupIndex, false, numBuff);
+            input = sorted;
+        }
+        if (!input.open()) {
+            System.out.printf("Unable to open sorted");
+            return false;
+        }
+        inbatch = null;
+        curs = 0;
+        eos = false;
+        group = null;
+        groupTuple = null;
+        return true;
+    }
+
+    /**
+     * Returns a tuple for every group once the first tuple
+     * * of the next group or the end of the input is seen
+     **/
+    public Batch next() {
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            Tuple tuple = nextTuple();
+            if (tuple == null) {
+                if (group != null) {
+                    outbatch.add(result(group));
+                    group = null;
+                }
+                break;
+            }
+            if (group != null && sameGroup(groupTuple, tuple)) {
+                accumulate(group, tuple);
+                continue;
+            }
+            if (group != null) {
+                outbatch.add(result(group));
+            }
+            group = newGroup(tuple);
+            groupTuple = tuple;
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
+
+    /** Next tuple of the grouped input, null at its end **/
+    private Tuple nextTuple() {
+        while (!eos && (inbatch == null || curs >= inbatch.size())) {
+            inbatch = input.next();
+            curs = 0;
+            if (inbatch == null) {
+                eos = true;
+            }
+        }
+        if (eos) {
+            return null;
+        }
+        return inbatch.get(curs++);
+    }
+
+    /** Whether the tuples have the same values of the grouping attributes **/
+    private boolean sameGroup(Tuple left, Tuple right) {
+        for (int index : groupIndex) {
+            if (!left.equalsAt(index, right, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close the operator
+     */
+    public boolean close() {
+        if (sorted != null) {
+            sorted.close();
+        } else {
+            base.close();
+        }
+        inbatch = null;
+        group = null;
+        return true;
+    }
+}
@@ -2,34 +2,38 @@ package qp.operators;
 
 import qp.utils.*;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 
 public class SortMergeJoin extends Join{
+    static final String GROUP_RUN = "group";  // Name of the spilled part of the key group
+    static final int MINBUFFERS = 6;          // Number of buffers the join needs at least
+
     static int filenum = 0;         // To get unique filenum for this operation
     int batchsize;                  // Number of tuples per out batch
     ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
     ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
-    ExternalSort sortedLeft; //External Sort Operator
-    TupleReader leftReader; //Reader for materialized left hand side
-    TupleReader rightReader; //Reader for materialized right hand side
+    ExternalSort sortedLeft; //External Sort Operator of the left hand side
+    ExternalSort sortedRight; //External Sort Operator of the right hand side
 
     Batch outbatch;                 // Buffer page for output
 
-    Batch leftBatch;                // Buffer page for left output stream;
-    int lcurs;                      // Cursor for left side buffer
-
-    ArrayList<Tuple> rightPartition;//partition of equivalent values
+    ArrayList<Tuple> rightPartition;//partition of equivalent values, empty if it is in the spill file
+    int partitionLimit;             // Number of right tuples of a partition held in memory
     int rpcurs;                     // Cursor for right partition;
+    long numSpilled;                // Number of tuples of the partition in the spill file
+    RunStore groupStore;            // Spill file of the partition, created when a partition first overflows
+    TupleReader spillReader;        // Scan of the spilled partition for the current left block
+    ArrayList<Tuple> leftBlock;     // Left tuples with the key of a spilled partition, in the buffers of the partition
+    int blockLimit;                 // Number of left tuples of a block
+    int bcurs;                      // Cursor for left block
+    Tuple spillTuple;               // Spilled right tuple being joined with the left block
 
     Tuple currLeft;//pointer to sorted left operator
     Tuple currRight;//pointer to tuple to sorted right operator
 
-    String rfname;
-    String lfname;
+    SortKey currLeftKey;            // Normalized join key of currLeft
+    SortKey currRightKey;           // Normalized join key of currRight
+    SortKey partitionKey;           // Normalized join key of the tuples in rightPartition, null if there is no partition
 
     public SortMergeJoin(Join jn) {
         super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
@@ -37,35 +41,63 @@ public class SortMergeJoin extends Join{
         jointype = jn.getJoinType();
     }
 
-    private Tuple advanceLeft() {
-        if (leftReader != null) {
-            //Left hand side is materialized and can be read with leftReader
-            return leftReader.next();
-        }
+    /**
+     * Buffers holding the partition of right tuples with the current key,
+     * * or a block of left tuples if the partition is spilled, a third
+     * * of the buffers left after the output page
+     **/
+    public static int partitionBuffers(long numBuff) {
+        return (int) Math.max(1, (numBuff - 1) / 3);
+    }
 
-        if (lcurs == 0) {
-            leftBatch = sortedLeft.next();
-        }
+    /**
+     * Buffers of the final merge of the right sort while the join runs,
+     * * half of what the output page and the partition leave
+     **/
+    public static int rightMergeBuffers(long numBuff) {
+        return (int) ((numBuff - 1 - partitionBuffers(numBuff)) / 2);
+    }
 
-        if (leftBatch == null) {
-            return null;
-        }
-        Tuple tuple = leftBatch.get(lcurs);
-        lcurs++;
+    /** Buffers of the final merge of the left sort while the join runs **/
+    public static int leftMergeBuffers(long numBuff) {
+        return (int) (numBuff - 1 - partitionBuffers(numBuff) - rightMergeBuffers(numBuff));
+    }
 
-        if (lcurs >= leftBatch.size()) {
-            lcurs = 0;
-        }
-        return tuple;
+    /**
+     * Buffers the left sort generates its runs with, those the
+     * * final merge of the right sort does not hold by then
+     **/
+    public static int leftSortBuffers(long numBuff) {
+        return (int) (numBuff - rightMergeBuffers(numBuff));
+    }
+
+    /**
+     * Whether the join runs within the given buffers: the output page,
+     * * a partition page and two pages for each of the final merges
+     **/
+    public static boolean fitsBuffers(long numBuff) {
+        return numBuff >= MINBUFFERS;
+    }
+
+    /**
+     * Moves to the next left tuple, its join key is the one the sort merged it by
+     **/
+    private Tuple advanceLeft() {
+        currLeftKey = sortedLeft.nextKey();
+        return (currLeftKey == null) ? null : currLeftKey.tuple;
     }
 
+    /**
+     * Moves to the next right tuple, its join key is the one the sort merged it by
+     **/
     private Tuple advanceRight() {
-        return rightReader.next();
+        currRightKey = sortedRight.nextKey();
+        return (currRightKey == null) ? null : currRightKey.tuple;
     }
 
     /**
      * During open finds the index of the join attributes
-     * * Materializes the right hand side into a file
+     * * Sorts both sides, the join reads their final merges directly
      * * Opens the connections
      **/
     public boolean open() {
@@ -82,73 +114,39 @@ public class SortMergeJoin extends Join{
             leftindex.add(left.getSchema().indexOf(leftattr));
             rightindex.add(right.getSchema().indexOf(rightattr));
         }
-        Batch page;
 
-        filenum++;
-        ExternalSort sortedRight = new ExternalSort("right" + String.valueOf(filenum), right, rightindex, false, numBuff);
-        rfname = "SMJtemp_right" + String.valueOf(filenum);
-        if (!sortedRight.open()) {
-            System.out.printf("Unable to open sorted right");
+        if (!fitsBuffers(numBuff)) {
+            System.out.println("SortMergeJoin: Minimum " + MINBUFFERS + " buffers are required");
             return false;
         }
 
-        //Materializing the right hand side
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(rfname));
-            while ((page = sortedRight.next()) != null) {
-                out.writeObject(page);
-            }
-            out.close();
-        } catch (IOException io) {
-            System.out.println("SortMergeJoin: Error writing to temporary file");
+        /** The right sort generates its runs with all the buffers, the left sort with
+         ** those its final merge leaves, both hold only their share while the join runs **/
+        filenum++;
+        sortedRight = new ExternalSort("right" + String.valueOf(filenum), right, rightindex, false, numBuff);
+        sortedRight.setMergeBuffers(rightMergeBuffers(numBuff));
+        if (!sortedRight.open()) {
+            System.out.printf("Unable to open sorted right");
             return false;
         }
-        if (!sortedRight.close())
-            return false;
-
-        sortedLeft = new ExternalSort("left" + String.valueOf(filenum), left, leftindex, false, numBuff);
+        sortedLeft = new ExternalSort("left" + String.valueOf(filenum), left, leftindex, false, leftSortBuffers(numBuff));
+        sortedLeft.setMergeBuffers(leftMergeBuffers(numBuff));
         if (!sortedLeft.open()) {
             System.out.printf("Unable to open sorted left");
             return false;
         }
 
-        int rightBatchSize = Batch.getPageSize()/right.getSchema().getTupleSize();
-        rightReader = new TupleReader(rfname, rightBatchSize);
-        if (!rightReader.open()) {
-            System.out.println("SortMergeJoin: Unable to open right reader");
-            this.close();
-            return false;
-        }
-        if (numBuff == 3) {
-            //If there are only 3 buffers available, materialize the left hand side
-            lfname = "SMJtemp_left" + String.valueOf(filenum);
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(lfname));
-                while ((page = sortedLeft.next()) != null) {
-                    out.writeObject(page);
-                }
-                out.close();
-            } catch (IOException io) {
-                System.out.println("SortMergeJoin: Error writing to temporary file");
-                return false;
-            }
-            if (!sortedLeft.close())
-                return false;
-
-            int leftBatchSize = Batch.getPageSize()/left.getSchema().getTupleSize();
-            leftReader = new TupleReader(lfname, leftBatchSize);
-            if (!leftReader.open()) {
-                System.out.println("SortMergeJoin: Unable to open left reader");
-                this.close();
-                return false;
-            }
-        }
-        lcurs = 0;
+        int rightBatchSize = Math.max(1, Batch.getPageSize() / right.getSchema().getTupleSize());
+        int leftBatchSize = Math.max(1, Batch.getPageSize() / left.getSchema().getTupleSize());
+        partitionLimit = partitionBuffers(numBuff) * rightBatchSize;
+        blockLimit = partitionBuffers(numBuff) * leftBatchSize;
+        rightPartition = new ArrayList<>();
+        leftBlock = new ArrayList<>();
+        partitionKey = null;
+        numSpilled = 0;
 
         currLeft = advanceLeft();
         currRight = advanceRight();
-
-        rightPartition = new ArrayList<>();
         return true;
     }
 
@@ -158,73 +156,168 @@ public class SortMergeJoin extends Join{
      **/
     public Batch next() {
         outbatch = new Batch(batchsize);
-        while (currLeft != null && (currRight != null || !rightPartition.isEmpty())) {
-            if (!rightPartition.isEmpty()) {
-                while (Tuple.compareTuples(currLeft, rightPartition.get(0), leftindex, rightindex) == 0) {
-                    while (rpcurs < rightPartition.size()) {
+        while (!outbatch.isFull()) {
+            if (partitionKey != null) {
+                if (numSpilled > 0) {
+                    if (spillTuple != null) {
+                        outbatch.add(leftBlock.get(bcurs).joinWith(spillTuple));
+                        bcurs++;
+                        if (bcurs >= leftBlock.size()) {
+                            spillTuple = nextSpilled();
+                            bcurs = 0;
+                        }
+                        continue;
+                    }
+                    /** The spilled partition is done for this block, the next left tuples may have the same key **/
+                    if (loadLeftBlock()) {
+                        continue;
+                    }
+                } else if (currLeft != null && currLeftKey.compareTo(partitionKey) == 0) {
+                    if (rpcurs < rightPartition.size()) {
                         outbatch.add(currLeft.joinWith(rightPartition.get(rpcurs)));
                         rpcurs++;
-                        if (outbatch.isFull())
-                            return outbatch;
-                    }
-                    rpcurs = 0;
-                    currLeft = advanceLeft();
-                    if (currLeft == null) {
-                        return outbatch;
+                    } else {
+                        /** The partition is done for this left tuple, the next one may have the same key **/
+                        currLeft = advanceLeft();
+                        rpcurs = 0;
                     }
+                    continue;
                 }
-                rightPartition.clear();
-                if (currRight == null) {
-                    return outbatch;
-                }
+                clearPartition();
             }
-
-            while (Tuple.compareTuples(currLeft, currRight, leftindex, rightindex) < 0) {
+            if (currLeft == null || currRight == null) {
+                break;
+            }
+            int compare = currLeftKey.compareTo(currRightKey);
+            if (compare < 0) {
                 currLeft = advanceLeft();
-                if (currLeft == null) {
-                    if (!outbatch.isEmpty()) {
-                        return outbatch;
-                    }
-                    return null;
-                }
+            } else if (compare > 0) {
+                currRight = advanceRight();
+            } else {
+                loadPartition();
             }
+        }
+        if (outbatch.isEmpty()) {
+            return null;
+        }
+        return outbatch;
+    }
 
-            while (Tuple.compareTuples(currLeft, currRight, leftindex, rightindex) > 0) {
-                currRight = advanceRight();
-                if (currRight == null) {
-                    if (!outbatch.isEmpty()) {
-                        return outbatch;
+    /**
+     * Collects the right tuples with the key of currRight. A partition of
+     * * up to partitionLimit tuples is held in memory, a larger one is
+     * * written to the spill file as a whole, so that its buffers can hold
+     * * a block of the left tuples with that key
+     **/
+    private void loadPartition() {
+        partitionKey = currRightKey;
+        rightPartition.clear();
+        numSpilled = 0;
+        TupleWriter writer = null;
+        while (currRight != null && currRightKey.compareTo(partitionKey) == 0) {
+            if (writer == null && rightPartition.size() < partitionLimit) {
+                rightPartition.add(currRight);
+            } else {
+                if (writer == null) {
+                    writer = openSpill();
+                    for (Tuple tuple : rightPartition) {
+                        writer.next(tuple);
                     }
-                    return null;
+                    numSpilled = rightPartition.size();
+                    rightPartition.clear();
                 }
+                writer.next(currRight);
+                numSpilled++;
             }
+            currRight = advanceRight();
+        }
+        if (writer != null && !writer.close()) {
+            System.out.println("SortMergeJoin: Error writing to temporary file");
+            System.exit(1);
+        }
+        rpcurs = 0;
+    }
 
-            while (Tuple.compareTuples(currLeft, currRight, leftindex, rightindex) == 0) {
-                rightPartition.add(currRight);
-                currRight = advanceRight();
-                if (currRight == null) {
-                    break;
-                }
+    /** Writer of the spilled part of the partition, replaces that of the previous partition **/
+    private TupleWriter openSpill() {
+        if (groupStore == null) {
+            int rightBatchSize = Math.max(1, Batch.getPageSize() / right.getSchema().getTupleSize());
+            groupStore = new RunStore("SMJtemp-" + String.valueOf(filenum), rightBatchSize);
+            if (!groupStore.open()) {
+                System.out.println("SortMergeJoin: Error writing to temporary file");
+                System.exit(1);
             }
         }
+        TupleWriter writer = groupStore.writer(GROUP_RUN);
+        writer.open();
+        return writer;
+    }
 
-        return null;
+    /**
+     * Reads the next block of left tuples with the key of the spilled
+     * * partition and starts a scan of the spill file for it, false if
+     * * no left tuple with that key is left
+     **/
+    private boolean loadLeftBlock() {
+        leftBlock.clear();
+        while (currLeft != null && leftBlock.size() < blockLimit && currLeftKey.compareTo(partitionKey) == 0) {
+            leftBlock.add(currLeft);
+            currLeft = advanceLeft();
+        }
+        if (leftBlock.isEmpty()) {
+            return false;
+        }
+        spillReader = groupStore.reader(GROUP_RUN);
+        if (!spillReader.open()) {
+            System.out.println("SortMergeJoin: Error reading temporary file");
+            System.exit(1);
+        }
+        spillTuple = nextSpilled();
+        bcurs = 0;
+        return true;
+    }
+
+    /** Next tuple of the scan of the spilled partition, null at its end **/
+    private Tuple nextSpilled() {
+        Tuple tuple = spillReader.next();
+        if (tuple == null) {
+            spillReader.close();
+            spillReader = null;
+        }
+        return tuple;
+    }
+
+    /** Drops the partition once no more left tuples have its key **/
+    private void clearPartition() {
+        if (spillReader != null) {
+            spillReader.close();
+            spillReader = null;
+        }
+        if (numSpilled > 0) {
+            groupStore.delete(GROUP_RUN);
+            numSpilled = 0;
+        }
+        rightPartition.clear();
+        leftBlock.clear();
+        spillTuple = null;
+        partitionKey = null;
+        rpcurs = 0;
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
-        if (leftReader != null) {
-            leftReader.close();
-            File f = new File(lfname);
-            f.delete();
-        } else {
-            sortedLeft.close();
-        }
-        File f = new File(rfname);
-        f.delete();
-        rightReader.close();
+        if (spillReader != null) {
+            spillReader.close();
+            spillReader = null;
+        }
+        if (groupStore != null) {
+            groupStore.close();
+            groupStore = null;
+        }
+        sortedLeft.close();
+        sortedRight.close();
         return true;
     }
 
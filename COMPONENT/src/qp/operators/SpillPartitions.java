@@ -0,0 +1,197 @@
+/**
+ * Spill partitions of the hash based operators
+ *
+ * A pass of HashAggregate or HashDistinct keeps what fits into its hash
+ * table and hands every other tuple to spill(), which hashes it into one
+ * of the partitions of the next level in a spill file. The partitions a
+ * pass spilled into are queued once the pass is done and read back one
+ * by one, each in a pass of its own at its level. The spill file is
+ * created when a pass first spills and deleted when the operator closes.
+ **/
+
+package qp.operators;
+
+import qp.utils.RunStore;
+import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
+
+import java.util.ArrayDeque;
+
+class SpillPartitions {
+
+    String opname;                  // Name of the operator for the error messages
+    String filename;                // Name of the spill file
+    int batchsize;                  // Number of spilled tuples per page
+    int numPartitions;              // Number of partitions a pass spills into
+    RunStore store;                 // Spill file of the partitions, created when a pass first spills
+    int runnum;                     // To get unique run names within the spill file
+    ArrayDeque<Partition> pending;  // Spilled partitions that still have to be read
+    Partition[] spilling;           // Partitions the current pass spills into, null if it spilled nothing
+    Partition reading;              // Partition being read, null if none is
+    TupleReader reader;             // Scan of the partition being read
+    int level;                      // Level of partitioning of the current pass, seeds the hash functions
+
+    SpillPartitions(String opname, String filename, int batchsize, int numPartitions) {
+        this.opname = opname;
+        this.filename = filename;
+        this.batchsize = batchsize;
+        this.numPartitions = numPartitions;
+        this.runnum = 0;
+        this.pending = new ArrayDeque<>();
+        this.level = 0;
+    }
+
+    /**
+     * Number of slots of an open-addressing hash table that
+     * * holds the given number of entries at most half full
+     **/
+    static int tableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+    }
+
+    /**
+     * Hash of the key, every seed gives a differently mixed hash function
+     * * so that the table and the partitions of every level are independent
+     **/
+    static int hash(Object key, int seed) {
+        int h = key.hashCode() + seed * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Hash of the key in the table of the current pass
+     **/
+    int tableHash(Object key) {
+        return hash(key, 2 * level);
+    }
+
+    /**
+     * Writes the tuple to its partition of the next level
+     **/
+    void spill(Tuple tuple, Object key) {
+        if (spilling == null) {
+            if (store == null) {
+                store = new RunStore(filename, batchsize);
+                if (!store.open()) {
+                    System.out.println(opname + ": Error writing to temporary file");
+                    System.exit(1);
+                }
+            }
+            spilling = new Partition[numPartitions];
+        }
+        int p = Math.floorMod(hash(key, 2 * level + 1), numPartitions);
+        if (spilling[p] == null) {
+            spilling[p] = new Partition(level + 1);
+        }
+        spilling[p].writer.next(tuple);
+    }
+
+    /**
+     * Closes the partitions the current pass spilled into, they are read after it
+     **/
+    void finishPass() {
+        if (spilling == null) {
+            return;
+        }
+        for (Partition partition : spilling) {
+            if (partition != null) {
+                if (!partition.writer.close()) {
+                    System.out.println(opname + ": Error writing to temporary file");
+                    System.exit(1);
+                }
+                partition.writer = null;
+                pending.push(partition);
+            }
+        }
+        spilling = null;
+    }
+
+    /**
+     * Whether spilled partitions are left to be read
+     **/
+    boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Starts reading the next spilled partition,
+     * * the pass over it is at the level of the partition
+     **/
+    void readNext() {
+        reading = pending.pop();
+        level = reading.level;
+        reader = store.reader(reading.run);
+        if (!reader.open()) {
+            System.out.println(opname + ": Error reading temporary file");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Whether a spilled partition is being read
+     **/
+    boolean isReading() {
+        return reading != null;
+    }
+
+    /**
+     * Next tuple of the partition being read, null at its end,
+     * * when the run is deleted from the spill file
+     **/
+    Tuple next() {
+        Tuple tuple = reader.next();
+        if (tuple == null) {
+            reader.close();
+            reader = null;
+            store.delete(reading.run);
+            reading = null;
+        }
+        return tuple;
+    }
+
+    /**
+     * Closes the partitions and deletes the spill file
+     **/
+    void close() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        reading = null;
+        if (spilling != null) {
+            for (Partition partition : spilling) {
+                if (partition != null && partition.writer != null) {
+                    partition.writer.close();
+                }
+            }
+            spilling = null;
+        }
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        pending = null;
+    }
+
+    /**
+     * Run of spilled tuples that did not fit into the table of a pass
+     **/
+    private class Partition {
+        final int level;      // Level of partitioning the run is read at
+        final String run;     // Name of the run in the spill file
+        TupleWriter writer;   // Writer of the run while the pass spills into it
+
+        private Partition(int level) {
+            this.level = level;
+            this.run = "p" + String.valueOf(runnum++);
+            this.writer = store.writer(run);
+            writer.open();
+        }
+    }
+}
@@ -9,11 +9,14 @@ import qp.operators.*;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Condition;
+import qp.utils.PageFileReader;
 import qp.utils.Schema;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
@@ -80,6 +83,8 @@ public class PlanCost {
             return getStatistics((OrderBy) node);
         } else if (node.getOpType() == OpType.DISTINCT){
             return getStatistics((Distinct) node);
+        } else if (node.getOpType() == OpType.AGGREGATE) {
+            return getStatistics((Aggregate) node);
         }
         System.out.println("operator is not supported");
         isFeasible = false;
@@ -88,15 +93,44 @@ public class PlanCost {
     
     /**
      * Distinct involves sorting the projected tuples
-     * * using SortMerge
+     * * using SortMerge, or a hash set of the distinct tuples
+     * * The distinct tuples are the product of the distinct values of
+     * * the attributes but at most the incoming tuples. The hash set
+     * * spills the tuples beyond it like a hash aggregation does its
+     * * groups, the cheaper method is recorded in the node, hashing if
+     * * both cost the same as its result streams out without a sort
      **/
     protected long getStatistics(Distinct node) {
         long numbuff = BufferManager.numBuffer;
         long tuples = calculateCost(node.getBase());
-        long tupleSize = node.getSchema().getTupleSize();
+        if (!isFeasible) {
+            return 0;
+        }
+        Schema schema = node.getSchema();
+        double distinct = 1;
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            distinct *= Math.max(1, ht.get(schema.getAttribute(i)));
+        }
+        long outtuples = (long) Math.min(distinct, (double) tuples);
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            Attribute attr = schema.getAttribute(i);
+            ht.put(attr, Math.max(1, Math.min(ht.get(attr), outtuples)));
+        }
+
+        long tupleSize = schema.getTupleSize();
         long capacity = Math.max(1, Batch.getPageSize() / tupleSize);
         long pages = (long) Math.ceil(((double) tuples) / (double) capacity);
-        return calculateExternalSortCost(pages,numbuff) + calculateCost(node.getBase());
+        long distinctpages = (long) Math.ceil(((double) outtuples) / (double) capacity);
+        long sortcost = calculateExternalSortCost(pages, numbuff);
+        long hashcost = calculateHashAggregateCost(pages, distinctpages, numbuff);
+        if (hashcost <= sortcost) {
+            node.setDistinctType(DistinctType.HASH);
+            cost = cost + hashcost;
+        } else {
+            node.setDistinctType(DistinctType.SORT);
+            cost = cost + sortcost;
+        }
+        return outtuples;
     }
 
     /**
@@ -109,10 +143,73 @@ public class PlanCost {
         long tupleSize = node.getSchema().getTupleSize();
         long capacity = Math.max(1, Batch.getPageSize() / tupleSize);
         long pages = (long) Math.ceil(((double) tuples) / (double) capacity);
-        return calculateExternalSortCost(pages,numbuff) + calculateCost(node.getBase());
+        cost = cost + calculateExternalSortCost(pages, numbuff);
+        return tuples;
     }
 
 
+    /**
+     * An aggregation returns a tuple per group, the number of groups is
+     * * the product of the distinct values of the grouping attributes
+     * * but at most the number of incoming tuples. A hash aggregation
+     * * writes and reads the incoming tuples of the groups that do not fit
+     * * into its table, a sort aggregation sorts the incoming tuples unless
+     * * they already come grouped. Like the join method, the aggregation
+     * * method is part of the plan: the cheaper one is recorded in the node,
+     * * sorting if the input is grouped and both cost the same. A partial
+     * * aggregation below a join has the buffers of a join. Without
+     * * grouping attributes the aggregates are computed on the fly into
+     * * a single tuple
+     **/
+    protected long getStatistics(Aggregate node) {
+        long intuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return 0;
+        }
+        Schema baseschema = node.getBase().getSchema();
+        double groups = 1;
+        for (Attribute attr : node.getGroupByList()) {
+            Attribute fullattr = baseschema.getAttribute(baseschema.indexOf(attr));
+            groups *= Math.max(1, ht.get(fullattr));
+        }
+        long outtuples = (long) Math.min(groups, (double) intuples);
+        if (node.getGroupByList().isEmpty()) {
+            outtuples = 1;
+        }
+
+        /** The grouping attributes keep their distinct values, every aggregate has one per group **/
+        Schema schema = node.getSchema();
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            Attribute attr = schema.getAttribute(i);
+            if (attr.getAggType() == Attribute.NONE) {
+                ht.put(attr, Math.max(1, Math.min(ht.get(attr), outtuples)));
+            } else {
+                ht.put(attr, Math.max(1, outtuples));
+            }
+        }
+
+        long incapacity = Math.max(1, Batch.getPageSize() / baseschema.getTupleSize());
+        long outcapacity = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+        long inpages = (long) Math.ceil(((double) intuples) / (double) incapacity);
+        long grouppages = (long) Math.ceil(((double) outtuples) / (double) outcapacity);
+        if (node.getGroupByList().isEmpty()) {
+            node.setAggregateType(AggregateType.SCALAR);
+            return outtuples;
+        }
+        long numbuff = node.isPartial() ? BufferManager.getBuffersPerJoin() : BufferManager.getBuffers();
+        long hashcost = calculateHashAggregateCost(inpages, grouppages, numbuff);
+        boolean grouped = SortAggregate.isGroupedOn(node.getBase(), node.getGroupByList());
+        long sortcost = grouped ? 0 : calculateExternalSortCost(inpages, numbuff);
+        if (sortcost < hashcost || (grouped && sortcost == hashcost)) {
+            node.setAggregateType(AggregateType.SORT);
+            cost = cost + sortcost;
+        } else {
+            node.setAggregateType(AggregateType.HASH);
+            cost = cost + hashcost;
+        }
+        return outtuples;
+    }
+
     /**
      * Projection will not change any statistics
      * * No cost involved as done on the fly
@@ -175,11 +272,26 @@ public class PlanCost {
                 joincost = leftpages * rightpages;
                 break;
             case JoinType.BLOCKNESTED:
+                if (BlockNestedJoin.cachesRight(rightpages, numbuff)) {
+                    /** Right table is read once into memory, the left table is read once **/
+                    joincost = leftpages + rightpages;
+                    break;
+                }
                 long blocksize = numbuff-2;
                 joincost = leftpages + (long) Math.ceil(((double) leftpages) / blocksize) * rightpages;
                 break;
             case JoinType.SORTMERGE:
-                joincost = calculateExternalSortCost(leftpages, numbuff) + calculateExternalSortCost(rightpages, numbuff) + leftpages + rightpages;
+                if (!SortMergeJoin.fitsBuffers(numbuff)) {
+                    isFeasible = false;
+                    return 0;
+                }
+                /** The left sort generates its runs next to the final merge of the right sort **/
+                joincost = calculateExternalSortCost(leftpages, SortMergeJoin.leftSortBuffers(numbuff), SortMergeJoin.leftMergeBuffers(numbuff))
+                        + calculateExternalSortCost(rightpages, numbuff, SortMergeJoin.rightMergeBuffers(numbuff))
+                        + leftpages + rightpages;
+                break;
+            case JoinType.HASHJOIN:
+                joincost = calculateHashJoinCost(leftpages, rightpages, numbuff);
                 break;
             default:
                 System.out.println("join type is not supported");
@@ -194,6 +306,7 @@ public class PlanCost {
      * Find number of incoming tuples, Using the selectivity find # of output tuples
      * * And statistics about the attributes
      * * Selection is performed on the fly, so no cost involved
+     * * A fused selection applies the selectivity of its conditions one after another
      **/
     protected long getStatistics(Select node) {
         long intuples = calculateCost(node.getBase());
@@ -202,39 +315,79 @@ public class PlanCost {
             return Long.MAX_VALUE;
         }
 
-        Condition con = node.getCondition();
         Schema schema = node.getSchema();
+        long outtuples = intuples;
+        for (Condition con : node.getConditionList()) {
+            outtuples = getStatistics(con, schema, outtuples);
+        }
+        return outtuples;
+    }
+
+    /**
+     * Number of the incoming tuples satisfying the select condition
+     **/
+    protected long getStatistics(Condition con, Schema schema, long intuples) {
+        long outtuples = (long) Math.ceil(getSelectivity(con, schema) * intuples);
+
+        /** Modify the number of distinct values of each attribute
+         ** Assuming the values are distributed uniformly along entire
+         ** relation
+         **/
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            Attribute attri = schema.getAttribute(i);
+            long oldvalue = ht.get(attri);
+            long newvalue = oldvalue;
+            if (intuples > 0) {
+                newvalue = (long) Math.ceil(((double) outtuples / (double) intuples) * oldvalue);
+            }
+            ht.put(attri, Math.max(1, newvalue));
+        }
+        return outtuples;
+    }
+
+    /**
+     * Fraction of the tuples satisfying the select condition
+     **/
+    protected double getSelectivity(Condition con, Schema schema) {
         Attribute attr = con.getLhs();
         int index = schema.indexOf(attr);
         Attribute fullattr = schema.getAttribute(index);
         int exprtype = con.getExprType();
 
         /** Get number of distinct values of selection attributes **/
-        long numdistinct = intuples;
-        Long temp = ht.get(fullattr);
-        numdistinct = temp.longValue();
+        long numdistinct = Math.max(1, ht.get(fullattr));
 
-        long outtuples;
-        /** Calculate the number of tuples in result **/
         if (exprtype == Condition.EQUAL) {
-            outtuples = (long) Math.ceil((double) intuples / (double) numdistinct);
+            return 1.0 / numdistinct;
         } else if (exprtype == Condition.NOTEQUAL) {
-            outtuples = (long) Math.ceil(intuples - ((double) intuples / (double) numdistinct));
+            return 1.0 - 1.0 / numdistinct;
         } else {
-            outtuples = (long) Math.ceil(0.5 * intuples);
+            return 0.5;
         }
+    }
 
-        /** Modify the number of distinct values of each attribute
-         ** Assuming the values are distributed uniformly along entire
-         ** relation
-         **/
-        for (int i = 0; i < schema.getNumCols(); ++i) {
-            Attribute attri = schema.getAttribute(i);
-            long oldvalue = ht.get(attri);
-            long newvalue = (long) Math.ceil(((double) outtuples / (double) intuples) * oldvalue);
-            ht.put(attri, outtuples);
+    /**
+     * Orders the conditions of a fused selection by their rank
+     * * evaluation cost / (1 - selectivity), so that cheap conditions
+     * * dropping most of the tuples are evaluated first
+     **/
+    public void orderConditions(MultiSelect node) {
+        cost = 0;
+        isFeasible = true;
+        calculateCost(node.getBase());
+        Schema schema = node.getSchema();
+        ArrayList<Condition> conditions = new ArrayList<>(node.getConditionList());
+        HashMap<Condition, Double> rank = new HashMap<>();
+        for (Condition con : conditions) {
+            double evalcost = (schema.typeOf(con.getLhs()) == Attribute.STRING) ? 4 : 1;
+            if (con.getRhs() instanceof Attribute) {
+                evalcost++;
+            }
+            double filtered = 1.0 - getSelectivity(con, schema);
+            rank.put(con, filtered > 0 ? evalcost / filtered : Double.MAX_VALUE);
         }
-        return outtuples;
+        conditions.sort(Comparator.comparingDouble(rank::get));
+        node.setConditionList(conditions);
     }
 
     /**
@@ -294,6 +447,18 @@ public class PlanCost {
         long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
         long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
 
+        /** A table in the page format records how many pages a scan reads **/
+        String tblfile = tablename + ".tbl";
+        if (PageFileReader.isPageFile(tblfile)) {
+            PageFileReader reader = new PageFileReader(tblfile);
+            if (reader.open()) {
+                if (reader.getPageSize() == Batch.getPageSize()) {
+                    numpages = reader.getNumPages();
+                }
+                reader.close();
+            }
+        }
+
         cost = cost + numpages;
 
         try {
@@ -305,8 +470,78 @@ public class PlanCost {
         return numtuples;
     }
 
+    /**
+     * Every pass writes and reads all the pages, the number of
+     * * merge passes depends on the runs the run generation produces.
+     * * An input that fits into the buffers is sorted without any I/O
+     **/
     protected long calculateExternalSortCost(long pages, long numBuff) {
-        return 2 * pages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) pages / numBuff)) / Math.log(numBuff - 1)));
+        if (ExternalSort.fitsInMemory(pages, numBuff)) {
+            return 0;
+        }
+        long runs = ExternalSort.estimateRuns(pages, numBuff);
+        return 2 * pages * (1 + (long) Math.ceil(Math.log(runs) / Math.log(numBuff - 1)));
+    }
+
+    /**
+     * Sort whose final merge holds only mergeBuff of the numBuff buffers,
+     * * merge passes over numBuff - 1 runs go on until the runs fit into it
+     **/
+    protected long calculateExternalSortCost(long pages, long numBuff, long mergeBuff) {
+        if (ExternalSort.fitsInMemory(pages, mergeBuff)) {
+            return 0;
+        }
+        long runs = ExternalSort.estimateRuns(pages, numBuff);
+        long passes = 1;
+        while (runs > mergeBuff - 1) {
+            runs = (long) Math.ceil((double) runs / (numBuff - 1));
+            passes++;
+        }
+        if (runs > 1) {
+            passes++;
+        }
+        return 2 * pages * passes;
+    }
+
+    /**
+     * Hash aggregation spills the tuples of the groups beyond the table,
+     * * the tables of a level hold as many groups as there are partitions
+     * * of that level. The tuples spilled are assumed to be in proportion
+     * * to the groups that do not fit
+     **/
+    protected long calculateHashAggregateCost(long inpages, long grouppages, long numBuff) {
+        long held = HashAggregate.tablePages(numBuff);
+        long partitions = HashAggregate.numPartitions(numBuff);
+        long remaining = grouppages;
+        double spilled = inpages;
+        long aggcost = 0;
+        while (remaining > held) {
+            spilled = spilled * (remaining - held) / remaining;
+            aggcost = aggcost + 2 * (long) Math.ceil(spilled);
+            remaining = remaining - held;
+            held = held * partitions;
+        }
+        return aggcost;
+    }
+
+    /**
+     * Hash join reads both inputs once, and writes and reads back
+     * * both inputs once per partitioning level.
+     * * If the left input fits in the buffers nothing is spilled at all.
+     **/
+    protected long calculateHashJoinCost(long leftpages, long rightpages, long numBuff) {
+        long mempages = numBuff - 2;
+        if (leftpages <= mempages) {
+            return leftpages + rightpages;
+        }
+        long partitions = numBuff - 1;
+        long levels = 1;
+        long partitionpages = (long) Math.ceil((double) leftpages / partitions);
+        while (partitionpages > mempages && levels <= HashJoin.MAXLEVEL) {
+            partitionpages = (long) Math.ceil((double) partitionpages / partitions);
+            levels++;
+        }
+        return (2 * levels + 1) * (leftpages + rightpages);
     }
 }
 
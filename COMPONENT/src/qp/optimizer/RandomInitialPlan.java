@@ -50,19 +50,17 @@ public class RandomInitialPlan {
      **/
     public Operator prepareInitialPlan() {
 
-        if (sqlquery.getGroupByList().size() > 0) {
-            System.err.println("GroupBy is not implemented.");
-            System.exit(1);
-        }
-        
-
         tab_op_hash = new HashMap<>();
         createScanOp();
         createSelectOp();
         if (numJoin != 0) {
             createJoinOp();
         }
-        createProjectOp();
+        if (groupbylist.isEmpty()) {
+            createProjectOp();
+        } else {
+            createAggregateOp();
+        }
         if (sqlquery.isDistinct()) {
             createDistinctOp();
         }
@@ -186,9 +184,12 @@ public class RandomInitialPlan {
             Schema newsche = left.getSchema().joinWith(right.getSchema());
             jn.setSchema(newsche);
 
-            /** randomly select a join type**/
+            /** randomly select a join type that fits into the buffers of a join **/
             int numJMeth = JoinType.numJoinTypes();
             int joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            while (!JoinType.fitsBuffers(joinMeth, BufferManager.getBuffersPerJoin())) {
+                joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            }
             jn.setJoinType(joinMeth);
             modifyHashtable(left, jn);
             modifyHashtable(right, jn);
@@ -202,10 +203,20 @@ public class RandomInitialPlan {
             root = jn;
     }
 
+    /**
+     * Projects out the select list, a select list with
+     * * aggregates aggregates the whole result instead
+     **/
     public void createProjectOp() {
         Operator base = root;
         if (projectlist == null)
             projectlist = new ArrayList<Attribute>();
+        for (Attribute attr : projectlist) {
+            if (attr.getAggType() != Attribute.NONE) {
+                createAggregateOp();
+                return;
+            }
+        }
         if (!projectlist.isEmpty()) {
             root = new Project(base, projectlist, OpType.PROJECT);
             Schema newSchema = base.getSchema().subSchema(projectlist);
@@ -213,6 +224,28 @@ public class RandomInitialPlan {
         }
     }
 
+    /**
+     * Groups the result on the GROUP BY attributes in place of the
+     * * projection, the select list may only hold grouping attributes
+     * * and aggregates. Without a select list the groups are returned,
+     * * without GROUP BY attributes the whole result is one group
+     **/
+    public void createAggregateOp() {
+        Operator base = root;
+        if (projectlist == null)
+            projectlist = new ArrayList<Attribute>();
+        ArrayList<Attribute> attrset = projectlist.isEmpty() ? groupbylist : projectlist;
+        for (Attribute attr : attrset) {
+            if (attr.getAggType() == Attribute.NONE && !groupbylist.contains(attr)) {
+                System.err.println("RandomInitialPlan: " + attr + " is neither grouped nor aggregated");
+                System.exit(1);
+            }
+        }
+        root = new Aggregate(base, groupbylist, attrset, OpType.AGGREGATE);
+        Schema newSchema = base.getSchema().subSchema(attrset);
+        root.setSchema(newSchema);
+    }
+
     private void modifyHashtable(Operator old, Operator newop) {
         for (HashMap.Entry<String, Operator> entry : tab_op_hash.entrySet()) {
             if (entry.getValue().equals(old)) {
@@ -9,6 +9,7 @@ import qp.utils.Attribute;
 import qp.utils.Condition;
 import qp.utils.RandNumb;
 import qp.utils.SQLQuery;
+import qp.utils.Schema;
 
 import java.util.ArrayList;
 
@@ -20,11 +21,13 @@ public class RandomOptimizer {
     public static final int METHODCHOICE = 0;  // Selecting neighbor by changing a method for an operator
     public static final int COMMUTATIVE = 1;   // By rearranging the operators by commutative rule
     public static final int ASSOCIATIVE = 2;   // Rearranging the operators by associative rule
+    public static final int PARTIALAGG = 3;    // Placing or removing a partial aggregation below a join
 
     /**
-     * Number of altenative methods available for a node as specified above
+     * Number of altenative methods available for a node as specified above,
+     * * partial aggregations only for queries with aggregation
      **/
-    public static final int NUMCHOICES = 3;
+    public static final int NUMCHOICES = 4;
 
     SQLQuery sqlquery;  // Vector of Vectors of Select + From + Where + GroupBy
     int numJoin;        // Number of joins in this query plan
@@ -67,13 +70,19 @@ public class RandomOptimizer {
                     smj.setRight(right);
                     smj.setNumBuff(numbuff);
                     return smj;
+                case JoinType.HASHJOIN:
+                    HashJoin hj = new HashJoin((Join) node);
+                    hj.setLeft(left);
+                    hj.setRight(right);
+                    hj.setNumBuff(numbuff);
+                    return hj;
                 default:
                     return node;
             }
         } else if (node.getOpType() == OpType.SELECT) {
             Operator base = makeExecPlan(((Select) node).getBase());
             ((Select) node).setBase(base);
-            return node;
+            return fuseSelect((Select) node);
         } else if (node.getOpType() == OpType.PROJECT) {
             Operator base = makeExecPlan(((Project) node).getBase());
             ((Project) node).setBase(base);
@@ -87,20 +96,63 @@ public class RandomOptimizer {
             Operator base = makeExecPlan(((Distinct) node).getBase());
             ((Distinct)node).setNumBuff(BufferManager.getBuffers());   // Distinct has to materialize all tuples first
             ((Distinct)node).setBase(base);
+            if (((Distinct) node).getDistinctType() == DistinctType.HASH) {
+                return new HashDistinct((Distinct) node);
+            }
             return node;
+        } else if (node.getOpType() == OpType.AGGREGATE) {
+            Operator base = makeExecPlan(((Aggregate) node).getBase());
+            if (((Aggregate) node).isPartial()) {
+                ((Aggregate) node).setNumBuff(BufferManager.getBuffersPerJoin());
+            } else {
+                ((Aggregate) node).setNumBuff(BufferManager.getBuffers());
+            }
+            switch (((Aggregate) node).getAggregateType()) {
+                case AggregateType.SORT:
+                    SortAggregate sa = new SortAggregate((Aggregate) node);
+                    sa.setBase(base);
+                    return sa;
+                case AggregateType.SCALAR:
+                    ScalarAggregate scalar = new ScalarAggregate((Aggregate) node);
+                    scalar.setBase(base);
+                    return scalar;
+                default:
+                    HashAggregate ha = new HashAggregate((Aggregate) node);
+                    ha.setBase(base);
+                    return ha;
+            }
         } else {
             return node;
         }
     }
 
+    /**
+     * Merges a selection with the selections directly below it into
+     * * one MultiSelect, whose conditions are ordered by selectivity
+     **/
+    protected static Operator fuseSelect(Select node) {
+        if (node.getBase().getOpType() != OpType.SELECT) {
+            return node;
+        }
+        Select base = (Select) node.getBase();
+        ArrayList<Condition> conditions = new ArrayList<>(base.getConditionList());
+        conditions.addAll(node.getConditionList());
+        MultiSelect fused = new MultiSelect(base.getBase(), conditions, OpType.SELECT);
+        fused.setSchema(node.getSchema());
+        PlanCost pc = new PlanCost();
+        pc.orderConditions(fused);
+        return fused;
+    }
+
     /**
      * Randomly selects a neighbour
      **/
     protected Operator getNeighbor(Operator root) {
         // Randomly select a node to be altered to get the neighbour
         int nodeNum = RandNumb.randInt(0, numJoin - 1);
-        // Randomly select type of alteration: Change Method/Associative/Commutative
-        int changeType = RandNumb.randInt(0, NUMCHOICES - 1);
+        // Randomly select type of alteration: Change Method/Associative/Commutative/Partial aggregation
+        int numChoices = isAggregated() ? NUMCHOICES : PARTIALAGG;
+        int changeType = RandNumb.randInt(0, numChoices - 1);
         Operator neighbor = null;
         switch (changeType) {
             case METHODCHOICE:   // Select a neighbour by changing the method type
@@ -112,10 +164,28 @@ public class RandomOptimizer {
             case ASSOCIATIVE:
                 neighbor = neighborAssoc(root, nodeNum);
                 break;
+            case PARTIALAGG:
+                neighbor = neighborPartialAgg(root, nodeNum);
+                break;
         }
         return neighbor;
     }
 
+    /**
+     * Whether the result of the query is aggregated
+     **/
+    private boolean isAggregated() {
+        if (!sqlquery.getGroupByList().isEmpty()) {
+            return true;
+        }
+        for (Attribute attr : sqlquery.getProjectList()) {
+            if (attr.getAggType() != Attribute.NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Implementation of Simulated Annealing Algorithm for Randomized optimization of Query Plan
      **/
@@ -333,7 +403,7 @@ public class RandomOptimizer {
             Join node = (Join) findNodeAt(root, joinNum);
             int prevJoinMeth = node.getJoinType();
             int joinMeth = RandNumb.randInt(0, numJMeth - 1);
-            while (joinMeth == prevJoinMeth) {
+            while (joinMeth == prevJoinMeth || !JoinType.fitsBuffers(joinMeth, BufferManager.getBuffersPerJoin())) {
                 joinMeth = RandNumb.randInt(0, numJMeth - 1);
             }
             node.setJoinType(joinMeth);
@@ -470,6 +540,99 @@ public class RandomOptimizer {
         }
     }
 
+    /**
+     * Places a partial aggregation on an input of the join numbered with
+     * * joinNum, or removes the one there, trying a random input first
+     * *  e.g.,  A X B  is changed as  A X partial(B)
+     * * returns the modifies plan
+     **/
+    protected Operator neighborPartialAgg(Operator root, int joinNum) {
+        System.out.println("------------------neighbor by partial aggregation---------------");
+        Join node = (Join) findNodeAt(root, joinNum);
+        boolean left = RandNumb.flipCoin();
+        if (!togglePartialAgg(node, left)) {
+            togglePartialAgg(node, !left);
+        }
+        modifySchema(root);
+        return root;
+    }
+
+    /**
+     * Removes the partial aggregation on the given input of the join or
+     * * places one there, false if the input cannot be pre-aggregated
+     **/
+    private boolean togglePartialAgg(Join node, boolean left) {
+        Operator input = left ? node.getLeft() : node.getRight();
+        Operator newinput;
+        if (input.getOpType() == OpType.AGGREGATE) {
+            newinput = ((Aggregate) input).getBase();
+        } else {
+            newinput = createPartialAgg(input);
+            if (newinput == null) {
+                return false;
+            }
+        }
+        if (left) {
+            node.setLeft(newinput);
+        } else {
+            node.setRight(newinput);
+        }
+        return true;
+    }
+
+    /**
+     * Partial aggregation of the input if every aggregate of the query is
+     * * over an attribute of the input, or already pre-aggregated in it,
+     * * null otherwise. The input is grouped on its grouping attributes and
+     * * join attributes, which the joins and the aggregation above still
+     * * need. A MAX, MIN, SUM or COUNT is pre-aggregated as it is, an AVG
+     * * as the SUM and the COUNT it is made of. Partial results of a partial
+     * * aggregation further down are merged
+     **/
+    private Aggregate createPartialAgg(Operator input) {
+        Schema schema = input.getSchema();
+        ArrayList<Attribute> groupbylist = new ArrayList<>();
+        for (Attribute attr : sqlquery.getGroupByList()) {
+            if (schema.contains(attr) && !groupbylist.contains(attr)) {
+                groupbylist.add(attr);
+            }
+        }
+        for (Condition con : sqlquery.getJoinList()) {
+            Attribute lhs = con.getLhs();
+            Attribute rhs = (Attribute) con.getRhs();
+            if (schema.contains(lhs) && !schema.contains(rhs) && !groupbylist.contains(lhs)) {
+                groupbylist.add(lhs);
+            } else if (schema.contains(rhs) && !schema.contains(lhs) && !groupbylist.contains(rhs)) {
+                groupbylist.add(rhs);
+            }
+        }
+        ArrayList<Attribute> attrset = new ArrayList<>(groupbylist);
+        for (Attribute attr : sqlquery.getProjectList()) {
+            if (attr.getAggType() == Attribute.NONE) {
+                continue;
+            }
+            ArrayList<Attribute> partials = new ArrayList<>();
+            if (attr.getAggType() == Attribute.AVG) {
+                partials.add(Aggregate.partialOf(attr, Attribute.SUM));
+                partials.add(Aggregate.partialOf(attr, Attribute.COUNT));
+            } else {
+                partials.add(attr);
+            }
+            if (!schema.contains(attr.getBaseAttribute()) && !schema.getAttList().containsAll(partials)) {
+                return null;
+            }
+            for (Attribute partial : partials) {
+                if (!attrset.contains(partial)) {
+                    attrset.add(partial);
+                }
+            }
+        }
+        Aggregate agg = new Aggregate(input, groupbylist, attrset, OpType.AGGREGATE);
+        agg.setPartial(true);
+        agg.setSchema(schema.subSchema(attrset));
+        return agg;
+    }
+
     /**
      * This method traverses through the query plan and
      * * returns the node mentioned by joinNum
@@ -496,6 +659,8 @@ public class RandomOptimizer {
             return findNodeAt(((OrderBy) node).getBase(), joinNum);
         } else if (node.getOpType() == OpType.DISTINCT) {
             return findNodeAt(((Distinct) node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.AGGREGATE) {
+            return findNodeAt(((Aggregate) node).getBase(), joinNum);
         } else {
             return null;
         }
@@ -520,6 +685,18 @@ public class RandomOptimizer {
             modifySchema(base);
             ArrayList attrlist = ((Project) node).getProjAttr();
             node.setSchema(base.getSchema().subSchema(attrlist));
+        } else if (node.getOpType() == OpType.AGGREGATE) {
+            Operator base = ((Aggregate) node).getBase();
+            modifySchema(base);
+            node.setSchema(base.getSchema().subSchema(((Aggregate) node).getAggAttr()));
+        } else if (node.getOpType() == OpType.SORT) {
+            Operator base = ((OrderBy) node).getBase();
+            modifySchema(base);
+            node.setSchema(base.getSchema());
+        } else if (node.getOpType() == OpType.DISTINCT) {
+            Operator base = ((Distinct) node).getBase();
+            modifySchema(base);
+            node.setSchema(base.getSchema());
         }
     }
 }
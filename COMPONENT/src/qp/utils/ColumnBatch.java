@@ -0,0 +1,426 @@
+/**
+ * ColumnBatch represents a page stored column by column
+ **/
+
+package qp.utils;
+
+import java.util.HashMap;
+
+/**
+ * Every INT column is an int array, every REAL column a float array and
+ * every STRING column an int array of codes into a dictionary of the page.
+ * The selection vector holds the positions of the rows still qualifying,
+ * so filters narrow it instead of copying the rows
+ */
+public class ColumnBatch {
+
+    byte[] types;        // Attribute type of every column
+    int numRows;         // Number of rows stored
+    int[][] ints;        // INT values or dictionary codes of STRING columns
+    float[][] floats;    // REAL values
+    String[][] dicts;    // Dictionary of every STRING column
+    int[] sel;           // Positions of the selected rows
+    int numSelected;     // Number of selected rows
+
+    /** Empty batch of the given column types for at most numrows rows **/
+    public ColumnBatch(byte[] types, int numrows) {
+        this.types = types;
+        ints = new int[types.length][];
+        floats = new float[types.length][];
+        dicts = new String[types.length][];
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.REAL) {
+                floats[i] = new float[numrows];
+            } else {
+                ints[i] = new int[numrows];
+            }
+        }
+        sel = new int[numrows];
+    }
+
+    private ColumnBatch(ColumnBatch base, int[] index) {
+        types = new byte[index.length];
+        ints = new int[index.length][];
+        floats = new float[index.length][];
+        dicts = new String[index.length][];
+        for (int i = 0; i < index.length; ++i) {
+            types[i] = base.types[index[i]];
+            ints[i] = base.ints[index[i]];
+            floats[i] = base.floats[index[i]];
+            dicts[i] = base.dicts[index[i]];
+        }
+        numRows = base.numRows;
+        sel = base.sel;
+        numSelected = base.numSelected;
+    }
+
+    /**
+     * Stores the tuples of the batch column by column
+     */
+    public static ColumnBatch fromBatch(Batch batch, byte[] types) {
+        int n = batch.size();
+        ColumnBatch columns = new ColumnBatch(types, n);
+        for (int c = 0; c < types.length; ++c) {
+            if (types[c] == Attribute.INT) {
+                int[] col = columns.ints[c];
+                for (int r = 0; r < n; ++r) {
+                    col[r] = batch.get(r).getInt(c);
+                }
+            } else if (types[c] == Attribute.REAL) {
+                float[] col = columns.floats[c];
+                for (int r = 0; r < n; ++r) {
+                    col[r] = batch.get(r).getFloat(c);
+                }
+            } else {
+                DictionaryBuilder dict = new DictionaryBuilder();
+                int[] col = columns.ints[c];
+                for (int r = 0; r < n; ++r) {
+                    col[r] = dict.codeOf(batch.get(r).getString(c));
+                }
+                columns.dicts[c] = dict.toArray();
+            }
+        }
+        columns.setNumRows(n);
+        return columns;
+    }
+
+    /** Sets the number of rows filled in and selects all of them **/
+    public void setNumRows(int n) {
+        numRows = n;
+        numSelected = n;
+        for (int i = 0; i < n; ++i) {
+            sel[i] = i;
+        }
+    }
+
+    public int getNumCols() {
+        return types.length;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumSelected() {
+        return numSelected;
+    }
+
+    /** Row position of the i-th selected row **/
+    public int selectedAt(int i) {
+        return sel[i];
+    }
+
+    public int typeAt(int col) {
+        return types[col];
+    }
+
+    public int[] getIntColumn(int col) {
+        return ints[col];
+    }
+
+    public float[] getFloatColumn(int col) {
+        return floats[col];
+    }
+
+    public String[] getDictionary(int col) {
+        return dicts[col];
+    }
+
+    public void setDictionary(int col, String[] dict) {
+        dicts[col] = dict;
+    }
+
+    public String getString(int col, int row) {
+        return dicts[col][ints[col][row]];
+    }
+
+    /**
+     * Batch sharing the columns and the selection vector,
+     * * only the given columns in the given order are visible
+     **/
+    public ColumnBatch project(int[] index) {
+        return new ColumnBatch(this, index);
+    }
+
+    /** Builds the tuple of the row **/
+    public Tuple tupleAt(int row) {
+        int[] values = new int[types.length];
+        String[] strings = null;
+        for (int c = 0; c < types.length; ++c) {
+            if (types[c] == Attribute.REAL) {
+                values[c] = Float.floatToRawIntBits(floats[c][row]);
+            } else if (types[c] == Attribute.STRING) {
+                if (strings == null) strings = new String[types.length];
+                strings[c] = dicts[c][ints[c][row]];
+            } else {
+                values[c] = ints[c][row];
+            }
+        }
+        return new Tuple(types, values, strings);
+    }
+
+    /** Adds the selected rows from the from-th selected row on until the batch is full **/
+    public int addTo(Batch batch, int from) {
+        int i = from;
+        for (; i < numSelected && !batch.isFull(); ++i) {
+            batch.add(tupleAt(sel[i]));
+        }
+        return i;
+    }
+
+    /** Drops all the selected rows **/
+    public void selectNone() {
+        numSelected = 0;
+    }
+
+    /**
+     * Keeps the selected rows whose INT column lies within lo and hi
+     **/
+    public void selectIntRange(int col, int lo, int hi) {
+        int[] v = ints[col];
+        int n = 0;
+        for (int i = 0; i < numSelected; ++i) {
+            int r = sel[i];
+            sel[n] = r;
+            n += (v[r] >= lo && v[r] <= hi) ? 1 : 0;
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Keeps the selected rows whose REAL column lies within lo and hi
+     **/
+    public void selectFloatRange(int col, float lo, float hi) {
+        float[] v = floats[col];
+        int n = 0;
+        for (int i = 0; i < numSelected; ++i) {
+            int r = sel[i];
+            sel[n] = r;
+            n += (v[r] >= lo && v[r] <= hi) ? 1 : 0;
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Keeps the selected rows whose INT column satisfies the comparison with the constant
+     **/
+    public void selectInt(int col, int exprtype, int value) {
+        int[] v = ints[col];
+        int n = 0;
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] < value) ? 1 : 0;
+                }
+                break;
+            case Condition.GREATERTHAN:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] > value) ? 1 : 0;
+                }
+                break;
+            case Condition.LTOE:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] <= value) ? 1 : 0;
+                }
+                break;
+            case Condition.GTOE:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] >= value) ? 1 : 0;
+                }
+                break;
+            case Condition.EQUAL:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] == value) ? 1 : 0;
+                }
+                break;
+            case Condition.NOTEQUAL:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] != value) ? 1 : 0;
+                }
+                break;
+            default:
+                System.out.println("ColumnBatch: Incorrect condition operator");
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Keeps the selected rows whose REAL column satisfies the comparison with the constant
+     **/
+    public void selectFloat(int col, int exprtype, float value) {
+        float[] v = floats[col];
+        int n = 0;
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] < value) ? 1 : 0;
+                }
+                break;
+            case Condition.GREATERTHAN:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] > value) ? 1 : 0;
+                }
+                break;
+            case Condition.LTOE:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] <= value) ? 1 : 0;
+                }
+                break;
+            case Condition.GTOE:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] >= value) ? 1 : 0;
+                }
+                break;
+            case Condition.EQUAL:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] == value) ? 1 : 0;
+                }
+                break;
+            case Condition.NOTEQUAL:
+                for (int i = 0; i < numSelected; ++i) {
+                    int r = sel[i];
+                    sel[n] = r;
+                    n += (v[r] != value) ? 1 : 0;
+                }
+                break;
+            default:
+                System.out.println("ColumnBatch: Incorrect condition operator");
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Keeps the selected rows whose STRING column satisfies the comparison with the constant,
+     * * the comparison is done once per dictionary entry
+     **/
+    public void selectString(int col, int exprtype, String value) {
+        String[] dict = dicts[col];
+        boolean[] pass = new boolean[dict.length];
+        for (int d = 0; d < dict.length; ++d) {
+            pass[d] = satisfies(dict[d].compareTo(value), exprtype);
+        }
+        int[] v = ints[col];
+        int n = 0;
+        for (int i = 0; i < numSelected; ++i) {
+            int r = sel[i];
+            sel[n] = r;
+            n += pass[v[r]] ? 1 : 0;
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Keeps the selected rows whose column satisfies the comparison with another column of the same type
+     **/
+    public void selectColumns(int col, int exprtype, int othercol) {
+        int n = 0;
+        for (int i = 0; i < numSelected; ++i) {
+            int r = sel[i];
+            boolean keep;
+            if (types[col] == Attribute.INT) {
+                keep = satisfies(Integer.compare(ints[col][r], ints[othercol][r]), exprtype);
+            } else if (types[col] == Attribute.REAL) {
+                keep = satisfies(floats[col][r], floats[othercol][r], exprtype);
+            } else {
+                keep = satisfies(getString(col, r).compareTo(getString(othercol, r)), exprtype);
+            }
+            sel[n] = r;
+            n += keep ? 1 : 0;
+        }
+        numSelected = n;
+    }
+
+    /** Whether the two REAL values satisfy the comparison type **/
+    public static boolean satisfies(float left, float right, int exprtype) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return left < right;
+            case Condition.GREATERTHAN:
+                return left > right;
+            case Condition.LTOE:
+                return left <= right;
+            case Condition.GTOE:
+                return left >= right;
+            case Condition.EQUAL:
+                return left == right;
+            case Condition.NOTEQUAL:
+                return left != right;
+            default:
+                System.out.println("ColumnBatch: Incorrect condition operator");
+                return false;
+        }
+    }
+
+    /** Whether the result of a comparison satisfies the comparison type **/
+    public static boolean satisfies(int flag, int exprtype) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return flag < 0;
+            case Condition.GREATERTHAN:
+                return flag > 0;
+            case Condition.LTOE:
+                return flag <= 0;
+            case Condition.GTOE:
+                return flag >= 0;
+            case Condition.EQUAL:
+                return flag == 0;
+            case Condition.NOTEQUAL:
+                return flag != 0;
+            default:
+                System.out.println("ColumnBatch: Incorrect condition operator");
+                return false;
+        }
+    }
+
+    /**
+     * Assigns dictionary codes to the strings of a column in order of appearance
+     */
+    public static class DictionaryBuilder {
+
+        HashMap<String, Integer> codes = new HashMap<>();
+        String[] entries = new String[16];
+
+        public int codeOf(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                if (code == entries.length) {
+                    String[] grown = new String[2 * entries.length];
+                    System.arraycopy(entries, 0, grown, 0, entries.length);
+                    entries = grown;
+                }
+                entries[code] = value;
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        public String[] toArray() {
+            String[] dict = new String[codes.size()];
+            System.arraycopy(entries, 0, dict, 0, dict.length);
+            return dict;
+        }
+    }
+}
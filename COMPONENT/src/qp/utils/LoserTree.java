@@ -0,0 +1,129 @@
+/**
+ * Tournament tree of losers merging several sorted sources
+ **/
+
+package qp.utils;
+
+import java.util.Comparator;
+
+/**
+ * Every internal node keeps the loser of the match played at the node and
+ * the root keeps the overall winner. After the winner is taken, only the
+ * matches on the path from its source up to the root are replayed, which
+ * is one comparison per level and no allocation per entry.
+ * Ties are won by the source with the lower index, so the merge is stable
+ * with respect to the order of the sources.
+ * Subclasses supply the entries of the sources through nextFrom()
+ */
+public abstract class LoserTree<T> {
+
+    final Comparator<? super T> comparator;  // Order of the entries
+    final int numSources;                // Number of sources merged
+    final T[] heads;                     // Current entry of every source, null once exhausted
+    final int[] tree;                    // tree[0] is the winner, tree[1..] the losers of the nodes
+    boolean started;                     // Whether the first entries were read
+
+    @SuppressWarnings("unchecked")
+    public LoserTree(int numSources, Comparator<? super T> comparator) {
+        this.numSources = numSources;
+        this.comparator = comparator;
+        heads = (T[]) new Object[numSources];
+        tree = new int[Math.max(1, numSources)];
+    }
+
+    /**
+     * Next entry of the source, null once the source is exhausted
+     */
+    protected abstract T nextFrom(int source);
+
+    public int getNumSources() {
+        return numSources;
+    }
+
+    /** Smallest entry of all the sources without removing it, null if all are exhausted **/
+    public T peek() {
+        start();
+        return numSources == 0 ? null : heads[tree[0]];
+    }
+
+    /** Source of the entry returned by peek() **/
+    public int peekSource() {
+        start();
+        return tree[0];
+    }
+
+    /** Removes and returns the smallest entry of all the sources, null if all are exhausted **/
+    public T next() {
+        start();
+        if (numSources == 0) {
+            return null;
+        }
+        int winner = tree[0];
+        T entry = heads[winner];
+        if (entry == null) {
+            return null;
+        }
+        heads[winner] = nextFrom(winner);
+        replay(winner);
+        return entry;
+    }
+
+    /** Reads the first entry of every source and plays all the matches **/
+    private void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (int i = 0; i < numSources; ++i) {
+            heads[i] = nextFrom(i);
+        }
+        if (numSources > 0) {
+            tree[0] = build(1);
+        }
+    }
+
+    /**
+     * Plays the matches of the subtree at the node and returns its winner,
+     * * the leaves of source i sit at node numSources + i
+     **/
+    private int build(int node) {
+        if (node >= numSources) {
+            return node - numSources;
+        }
+        int left = build(2 * node);
+        int right = build(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    /** Replays the matches from the leaf of the source up to the root **/
+    private void replay(int source) {
+        int winner = source;
+        for (int node = (source + numSources) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /** Whether the head of source a comes before the head of source b **/
+    private boolean beats(int a, int b) {
+        T ta = heads[a];
+        T tb = heads[b];
+        if (ta == null) {
+            return false;
+        }
+        if (tb == null) {
+            return true;
+        }
+        int result = comparator.compare(ta, tb);
+        return result < 0 || (result == 0 && a < b);
+    }
+}
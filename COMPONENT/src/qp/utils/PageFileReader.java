@@ -0,0 +1,292 @@
+/**
+ * PageFileReader reads a file written by PageFileWriter one page at a time
+ * and decodes all the tuples of the page at once
+ *
+ * In ReadMode.MMAP the whole file is mapped into memory and the pages are
+ * decoded straight from the mapping, otherwise every page is one read
+ * into a heap buffer
+ */
+
+package qp.utils;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class PageFileReader {
+
+    final String filename;    // Filename to read from
+
+    FileChannel in;           // Input file channel
+    ByteBuffer page;          // Buffer for the page being decoded
+    MappedByteBuffer mapped;  // Mapping of the whole file in ReadMode.MMAP
+    int pagesize;             // Number of bytes per page of the file
+    int[] types;              // Attribute type of every column
+    byte[] typeCodes;         // Type codes shared by the decoded tuples
+    long numTuples;           // Number of tuples in the file
+    long numPages;            // Number of data pages in the file
+    long numPage = 0;         // Number of pages read
+
+    public PageFileReader(String filename) {
+        this.filename = filename;
+    }
+
+    // Returns true if the file starts with the header of a page file
+    public static boolean isPageFile(String filename) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+            return in.readInt() == PageFileWriter.MAGIC;
+        } catch (IOException io) {
+            return false;
+        }
+    }
+
+    public int getPageSize() {
+        return pagesize;
+    }
+
+    public int[] getTypes() {
+        return types;
+    }
+
+    public long getNumTuples() {
+        return numTuples;
+    }
+
+    public long getNumPages() {
+        return numPages;
+    }
+
+    public long getNumPage() {
+        return numPage;
+    }
+
+    // Skips the next n pages without reading them
+    public void skipPages(long n) {
+        numPage = Math.min(numPages, numPage + n);
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    // Opens the file and reads the file header
+    public boolean open() {
+        try {
+            in = new RandomAccessFile(filename, "r").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(PageFileWriter.FILE_HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != PageFileWriter.MAGIC || header.getInt() != PageFileWriter.VERSION) {
+                System.out.printf("%s:not a page file\n", filename);
+                in.close();
+                return false;
+            }
+            pagesize = header.getInt();
+            int numCols = header.getInt();
+            numTuples = header.getLong();
+            numPages = header.getLong();
+            ByteBuffer typebytes = ByteBuffer.allocate(numCols);
+            readFully(typebytes, PageFileWriter.FILE_HEADER_SIZE);
+            types = new int[numCols];
+            for (int i = 0; i < numCols; ++i) {
+                types[i] = typebytes.get(i);
+            }
+            typeCodes = Tuple.typeCodes(types);
+        } catch (IOException io) {
+            System.out.printf("%s:reading the page file error\n", filename);
+            return false;
+        }
+        numPage = 0;
+        mapped = null;
+        page = null;
+        try {
+            long size = in.size();
+            if (ReadMode.getMode() == ReadMode.MMAP && size <= Integer.MAX_VALUE) {
+                /** The mapping stays valid after the channel is closed **/
+                mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                in.close();
+                in = null;
+                numPages = Math.min(numPages, size / pagesize - 1);
+            }
+        } catch (IOException io) {
+            System.out.printf("%s:mapping the page file error\n", filename);
+            return false;
+        }
+        if (mapped == null) {
+            page = ByteBuffer.allocate(pagesize);
+        }
+        return true;
+    }
+
+    // Returns false if the end of the file is reached before the buffer is full
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    // Reads the next page with a single read and returns its tuples, null at the end of the file
+    public Batch readPage() {
+        ByteBuffer buffer = nextPageBuffer();
+        if (buffer == null) {
+            return null;
+        }
+        return decodePage(buffer, typeCodes);
+    }
+
+    // Buffer positioned at the start of the next page, null at the end of the file
+    ByteBuffer nextPageBuffer() {
+        if (numPage >= numPages) {
+            return null;
+        }
+        if (mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            int start = (int) ((numPage + 1) * pagesize);
+            view.limit(start + pagesize);
+            view.position(start);
+            numPage++;
+            return view;
+        }
+        page.clear();
+        try {
+            if (!readFully(page, (numPage + 1) * pagesize)) {
+                return null;
+            }
+        } catch (IOException io) {
+            System.out.printf("%s:reading the page file error\n", filename);
+            System.exit(1);
+        }
+        numPage++;
+        page.flip();
+        return page;
+    }
+
+    // Reads the next page and returns it column by column, null at the end of the file
+    public ColumnBatch readColumns() {
+        ByteBuffer buffer = nextPageBuffer();
+        if (buffer == null) {
+            return null;
+        }
+        return decodeColumns(buffer, typeCodes);
+    }
+
+    // Decodes all the rows of a page column by column, strings are dictionary coded per page
+    public static ColumnBatch decodeColumns(ByteBuffer page, byte[] types) {
+        int base = page.position();
+        int numSlots = page.getInt(base);
+        ColumnBatch columns = new ColumnBatch(types, numSlots);
+        ColumnBatch.DictionaryBuilder[] dicts = new ColumnBatch.DictionaryBuilder[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.STRING) {
+                dicts[i] = new ColumnBatch.DictionaryBuilder();
+            }
+        }
+        byte[] bytes = page.hasArray() ? page.array() : null;
+        int arrayOffset = page.hasArray() ? page.arrayOffset() : 0;
+        ByteBuffer view = page.hasArray() ? null : page.duplicate();
+        for (int slot = 0; slot < numSlots; ++slot) {
+            int pos = base + page.getInt(base + PageFileWriter.PAGE_HEADER_SIZE + slot * PageFileWriter.SLOT_SIZE);
+            for (int i = 0; i < types.length; ++i) {
+                if (types[i] == Attribute.INT) {
+                    columns.ints[i][slot] = page.getInt(pos);
+                    pos += 4;
+                } else if (types[i] == Attribute.REAL) {
+                    columns.floats[i][slot] = page.getFloat(pos);
+                    pos += 4;
+                } else {
+                    int length = page.getShort(pos) & 0xFFFF;
+                    pos += 2;
+                    String value;
+                    if (bytes != null) {
+                        value = new String(bytes, arrayOffset + pos, length, StandardCharsets.UTF_8);
+                    } else {
+                        byte[] encoded = new byte[length];
+                        view.position(pos);
+                        view.get(encoded);
+                        value = new String(encoded, StandardCharsets.UTF_8);
+                    }
+                    columns.ints[i][slot] = dicts[i].codeOf(value);
+                    pos += length;
+                }
+            }
+        }
+        for (int i = 0; i < types.length; ++i) {
+            if (dicts[i] != null) {
+                columns.dicts[i] = dicts[i].toArray();
+            }
+        }
+        columns.setNumRows(numSlots);
+        return columns;
+    }
+
+    // Decodes all the tuples of a page starting at the current position of the buffer
+    public static Batch decodePage(ByteBuffer page, int[] types) {
+        return decodePage(page, Tuple.typeCodes(types));
+    }
+
+    // Same as above, the decoded tuples share the given type codes
+    public static Batch decodePage(ByteBuffer page, byte[] types) {
+        int base = page.position();
+        int numSlots = page.getInt(base);
+        Batch tuples = new Batch(numSlots);
+        boolean hasString = false;
+        for (byte type : types) {
+            hasString |= (type == Attribute.STRING);
+        }
+        byte[] bytes = page.hasArray() ? page.array() : null;
+        int arrayOffset = page.hasArray() ? page.arrayOffset() : 0;
+        ByteBuffer view = page.hasArray() ? null : page.duplicate();
+        for (int slot = 0; slot < numSlots; ++slot) {
+            int pos = base + page.getInt(base + PageFileWriter.PAGE_HEADER_SIZE + slot * PageFileWriter.SLOT_SIZE);
+            int[] values = new int[types.length];
+            String[] strings = hasString ? new String[types.length] : null;
+            for (int i = 0; i < types.length; ++i) {
+                if (types[i] != Attribute.STRING) {
+                    values[i] = page.getInt(pos);
+                    pos += 4;
+                } else {
+                    int length = page.getShort(pos) & 0xFFFF;
+                    pos += 2;
+                    if (bytes != null) {
+                        strings[i] = new String(bytes, arrayOffset + pos, length, StandardCharsets.UTF_8);
+                    } else {
+                        byte[] encoded = new byte[length];
+                        view.position(pos);
+                        view.get(encoded);
+                        strings[i] = new String(encoded, StandardCharsets.UTF_8);
+                    }
+                    pos += length;
+                }
+            }
+            tuples.add(new Tuple(types, values, strings));
+        }
+        return tuples;
+    }
+
+    // Closes the input file
+    public boolean close() {
+        page = null;
+        mapped = null;
+        if (in != null) {
+            try {
+                in.close();
+                in = null;
+            } catch (IOException io) {
+                System.out.printf("%s:reading the page file error\n", filename);
+                System.out.println(io);
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * PageFileWriter writes tuples into a binary file of fixed size slotted pages
+ *
+ * The first page of the file is the file header:
+ *   magic, version, page size, number of columns, number of tuples,
+ *   number of data pages and one type byte per column.
+ * Every following page is a data page:
+ *   number of slots, offset of the lowest record, one offset per slot,
+ *   and the records packed from the end of the page towards the slots.
+ * A record stores INT and REAL fields as 4 bytes and STRING fields
+ * as an unsigned 2 byte length followed by the UTF-8 bytes.
+ */
+
+package qp.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class PageFileWriter {
+
+    static final int MAGIC = 0x51505047;  // "QPPG"
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 32;   // Bytes of the file header before the column types
+    static final int PAGE_HEADER_SIZE = 8;    // Number of slots, offset of the lowest record
+    static final int SLOT_SIZE = 4;           // Offset of a record
+    static final int MAX_STRING_SIZE = 0xFFFF;
+
+    final String filename;      // Filename to write to
+    final int pagesize;         // Number of bytes per page
+    final int[] types;          // Attribute type of every column
+    final int tuplesPerPage;    // Maximum number of tuples per page
+
+    FileChannel out;            // Output file channel
+    ByteBuffer page;            // Buffer for the page being filled
+    ArrayList<byte[][]> strings;    // Encoded strings of the tuples in the current page
+    ArrayList<Tuple> pageTuples;    // Tuples in the current page
+    int pageBytes;              // Bytes used in the current page
+    long numPage = 0;           // Number of data pages written
+    long numTuple = 0;          // Number of tuples written
+    int writeBehind = 0;        // Pages written on a background thread, 0 writes synchronously
+    WriteBehind<ByteBuffer> behind;  // Background writer of the data pages
+
+    // filename: Filename of the output file to write to
+    // schema: Schema of the tuples, the page holds at most pagesize / tuplesize tuples
+    // pagesize: Number of bytes per page
+    public PageFileWriter(String filename, Schema schema, int pagesize) {
+        this(filename, typesOf(schema), pagesize, Math.max(1, pagesize / Math.max(1, schema.getTupleSize())));
+    }
+
+    // filename: Filename of the output file to write to
+    // types: Attribute type of every column
+    // pagesize: Number of bytes per page
+    // tuplesPerPage: Maximum number of tuples per page
+    public PageFileWriter(String filename, int[] types, int pagesize, int tuplesPerPage) {
+        this.filename = filename;
+        this.types = types;
+        this.pagesize = pagesize;
+        this.tuplesPerPage = tuplesPerPage;
+    }
+
+    public static int[] typesOf(Schema schema) {
+        int[] types = new int[schema.getNumCols()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = schema.typeOf(i);
+        }
+        return types;
+    }
+
+    public long getNumPage() {
+        return numPage;
+    }
+
+    public long getNumTuple() {
+        return numTuple;
+    }
+
+    // Number of tuples in the page being filled
+    public int getPageTuples() {
+        return pageTuples.size();
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    // Number of encoded pages that may wait to be written by a background thread,
+    // they are held in memory in addition to the page being filled
+    public void setWriteBehind(int pages) {
+        writeBehind = Math.max(0, pages);
+    }
+
+    // Opens the file and reserves the header page
+    public boolean open() {
+        if (FILE_HEADER_SIZE + types.length > pagesize) {
+            System.out.printf("%s:page size too small for the file header\n", filename);
+            return false;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(filename, "rw");
+            file.setLength(0);
+            out = file.getChannel();
+        } catch (IOException io) {
+            System.out.printf("%s:writing the page file error\n", filename);
+            return false;
+        }
+        page = ByteBuffer.allocate(pagesize);
+        strings = new ArrayList<>(tuplesPerPage);
+        pageTuples = new ArrayList<>(tuplesPerPage);
+        pageBytes = PAGE_HEADER_SIZE;
+        numPage = 0;
+        numTuple = 0;
+        writeFileHeader();
+        return true;
+    }
+
+    // Adds a tuple to the current page, the page is written out once no more tuples fit
+    public boolean next(Tuple tuple) {
+        byte[][] encoded = new byte[types.length][];
+        int size = recordSize(tuple, encoded);
+        if (PAGE_HEADER_SIZE + SLOT_SIZE + size > pagesize) {
+            System.out.printf("%s:tuple does not fit into a page\n", filename);
+            System.exit(1);
+        }
+        boolean written = true;
+        if (pageTuples.size() >= tuplesPerPage || pageBytes + SLOT_SIZE + size > pagesize) {
+            written = writePage();
+        }
+        pageTuples.add(tuple);
+        strings.add(encoded);
+        pageBytes += SLOT_SIZE + size;
+        numTuple++;
+        return written;
+    }
+
+    // Number of bytes of the record, strings are encoded into encoded on the way
+    private int recordSize(Tuple tuple, byte[][] encoded) {
+        int size = 0;
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.STRING) {
+                encoded[i] = tuple.getString(i).getBytes(StandardCharsets.UTF_8);
+                if (encoded[i].length > MAX_STRING_SIZE) {
+                    System.out.printf("%s:string attribute too long for a page\n", filename);
+                    System.exit(1);
+                }
+                size += 2 + encoded[i].length;
+            } else {
+                size += 4;
+            }
+        }
+        return size;
+    }
+
+    // Encodes the buffered tuples into a page and writes it to the file,
+    // returns false if a page written behind could not be written
+    boolean writePage() {
+        if (pageTuples.isEmpty()) {
+            return true;
+        }
+        byte[] bytes = page.array();
+        Arrays.fill(bytes, (byte) 0);
+        int numSlots = pageTuples.size();
+        int offset = pagesize;
+        for (int slot = 0; slot < numSlots; ++slot) {
+            Tuple tuple = pageTuples.get(slot);
+            byte[][] encoded = strings.get(slot);
+            int size = 0;
+            for (int i = 0; i < types.length; ++i) {
+                size += (types[i] == Attribute.STRING) ? 2 + encoded[i].length : 4;
+            }
+            offset -= size;
+            page.putInt(PAGE_HEADER_SIZE + slot * SLOT_SIZE, offset);
+            int pos = offset;
+            for (int i = 0; i < types.length; ++i) {
+                if (types[i] == Attribute.INT) {
+                    page.putInt(pos, tuple.getInt(i));
+                    pos += 4;
+                } else if (types[i] == Attribute.REAL) {
+                    page.putFloat(pos, tuple.getFloat(i));
+                    pos += 4;
+                } else {
+                    page.putShort(pos, (short) encoded[i].length);
+                    System.arraycopy(encoded[i], 0, bytes, pos + 2, encoded[i].length);
+                    pos += 2 + encoded[i].length;
+                }
+            }
+        }
+        page.putInt(0, numSlots);
+        page.putInt(4, offset);
+        boolean written = true;
+        if (writeBehind > 0) {
+            written = writeBehind(page);
+            page = ByteBuffer.allocate(pagesize);  // The page handed over belongs to the background thread
+        } else {
+            try {
+                write(page, numPage);
+            } catch (IOException io) {
+                System.out.printf("%s:writing the page file error\n", filename);
+                System.out.println(io);
+                System.exit(1);
+            }
+        }
+        numPage++;
+        pageTuples.clear();
+        strings.clear();
+        pageBytes = PAGE_HEADER_SIZE;
+        return written;
+    }
+
+    // Hands the encoded page to the background writer, pages are written in the order handed over
+    private boolean writeBehind(ByteBuffer encoded) {
+        if (behind == null) {
+            behind = new WriteBehind<ByteBuffer>(writeBehind) {
+                long pageNumber = 0;
+
+                protected void write(ByteBuffer page) throws IOException {
+                    PageFileWriter.this.write(page, pageNumber++);
+                }
+            };
+        }
+        return behind.put(encoded);
+    }
+
+    // Waits until the pages handed to the background writer are written,
+    // returns false if one of them could not be written
+    boolean finishWrites() {
+        if (behind == null) {
+            return true;
+        }
+        IOException io = behind.finish();
+        behind = null;
+        if (io != null) {
+            System.out.printf("%s:writing the page file error\n", filename);
+            System.out.println(io);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeFileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(pagesize);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(pagesize);
+        header.putInt(types.length);
+        header.putLong(numTuple);
+        header.putLong(numPage);
+        for (int type : types) {
+            header.put((byte) type);
+        }
+        try {
+            writeAt(header, 0);
+        } catch (IOException io) {
+            System.out.printf("%s:writing the page file error\n", filename);
+            System.out.println(io);
+            System.exit(1);
+        }
+    }
+
+    // Writes the encoded data page of the given number, called by the background writer if there is one
+    void write(ByteBuffer page, long pageNumber) throws IOException {
+        writeAt(page, (pageNumber + 1) * pagesize);
+    }
+
+    private void writeAt(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    // Writes the last unfilled page and the final counts in the file header,
+    // returns false if a page written behind could not be written
+    public boolean close() {
+        if (out == null) {
+            return true;
+        }
+        writePage();
+        boolean written = finishWrites();
+        writeFileHeader();
+        try {
+            out.close();
+            out = null;
+        } catch (IOException io) {
+            System.out.printf("%s:writing the page file error\n", filename);
+            System.out.println(io);
+            System.exit(1);
+        }
+        page = null;
+        return written;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Reads the pages of a sequential input ahead on a background thread
+ *
+ * The thread reads up to a given number of pages before the consumer asks
+ * for them, so decoding and I/O overlap with the work of the operator.
+ * Pages read ahead are held in memory, so the operator has to count them
+ * against its buffers; pagesWithin() caps the depth to the spare buffers.
+ */
+
+package qp.utils;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public abstract class ReadAhead<T> {
+
+    static int depth = 0;  // Pages read ahead by every reader, 0 reads synchronously
+
+    static final Object END = new Object();  // Marks the end of the input in the queue
+
+    final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();  // Pages read ahead
+    final Semaphore free;            // Pages that may still be read ahead
+    final Thread reader;             // Background thread reading the pages
+    volatile boolean closed = false; // Set when the consumer stops reading
+    volatile RuntimeException error; // Failure of the background thread
+    boolean done = false;            // Whether the consumer has seen the end
+
+    /** Set the number of pages read ahead, 0 turns read-ahead off **/
+    public static void setDepth(int pages) {
+        depth = Math.max(0, pages);
+    }
+
+    public static int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Number of pages to read ahead for an operator with the given
+     * * number of buffers to spare, 0 if it should read synchronously
+     **/
+    public static int pagesWithin(int spare) {
+        return Math.max(0, Math.min(depth, spare));
+    }
+
+    // pages: Maximum number of pages read ahead of the consumer
+    public ReadAhead(int pages) {
+        free = new Semaphore(Math.max(1, pages));
+        reader = new Thread(this::run, "ReadAhead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads the next page of the input on the background thread, null at the end
+     */
+    protected abstract T read();
+
+    private void run() {
+        try {
+            while (!closed) {
+                if (!free.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                T page = read();
+                if (page == null) {
+                    break;
+                }
+                queue.put(page);
+            }
+        } catch (InterruptedException e) {
+            error = new IllegalStateException("ReadAhead: reader interrupted");
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        queue.add(END);
+    }
+
+    // Returns the next page, waits for the background thread if it is not read yet
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (done) {
+            return null;
+        }
+        Object page;
+        try {
+            page = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("ReadAhead: interrupted while waiting for a page");
+        }
+        if (page == END) {
+            done = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        free.release();
+        return (T) page;
+    }
+
+    // Stops the background thread, it must not use the input after this returns
+    public void close() {
+        closed = true;
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Enumeration of the ways base tables and temporary files are read
+ **/
+
+package qp.utils;
+
+public class ReadMode {
+
+    public static final int STREAM = 0;  // Tuples are read through input streams / page reads into the heap
+    public static final int MMAP = 1;    // Files are stored as pages and mapped into memory
+
+    static int mode = STREAM;
+
+    /** Set how files are read **/
+    public static void setMode(int readmode) {
+        mode = readmode;
+    }
+
+    /** Get how files are read **/
+    public static int getMode() {
+        return mode;
+    }
+
+    /** Parses stream/mmap, returns -1 for an unknown mode **/
+    public static int parse(String name) {
+        if (name.equalsIgnoreCase("stream")) {
+            return STREAM;
+        } else if (name.equalsIgnoreCase("mmap")) {
+            return MMAP;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * RunStore keeps all the sorted runs of an operator in one spill file
+ *
+ * A run is written in the page format of PageFileWriter into extents of
+ * EXTENT_PAGES contiguous pages, so every run is read and written in long
+ * sequential stretches and no file is created or deleted per run.
+ * Pages are addressed by page-aligned offsets and read with positioned
+ * FileChannel reads, which lets several threads read and write runs of
+ * the same store at the same time. The extents of a deleted run are
+ * reused by the runs written after it.
+ * The spill file is removed on close, and on exit of the JVM if the
+ * query aborts before the store is closed.
+ */
+
+package qp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RunStore {
+
+    static final int EXTENT_PAGES = 64;  // Pages allocated to a run at a time
+
+    static final Set<RunStore> openStores = ConcurrentHashMap.newKeySet();  // Stores to remove if the JVM exits
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (RunStore store : openStores) {
+                store.close();
+            }
+        }));
+    }
+
+    final String filename;    // Spill file of the store
+    final int batchsize;      // Number of tuples per batch of the runs
+    final int pagesize;       // Number of bytes per page
+
+    FileChannel channel;                      // Spill file channel
+    final Map<String, Run> runs = new ConcurrentHashMap<>();  // Runs by name
+    final ArrayList<Long> freeExtents = new ArrayList<>();    // First pages of the extents no run uses
+    long numExtents = 0;                      // Number of extents in the spill file
+
+    /**
+     * Pages of a run and the types of its tuples
+     */
+    static class Run {
+        final ArrayList<Long> extents = new ArrayList<>();  // First page of every extent of the run
+        byte[] typeCodes = new byte[0];                     // Types of the columns
+        long numPages;                                      // Number of pages written
+        long numTuples;                                     // Number of tuples written
+
+        // Offset of the page of the run in the spill file
+        long offsetOf(long page, int pagesize) {
+            return (extents.get((int) (page / EXTENT_PAGES)) + page % EXTENT_PAGES) * pagesize;
+        }
+    }
+
+    // filename: Spill file of the store
+    // batchsize: Number of tuples per batch of the runs
+    public RunStore(String filename, int batchsize) {
+        this.filename = filename;
+        this.batchsize = batchsize;
+        this.pagesize = Batch.getPageSize();
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    // Creates the spill file
+    public boolean open() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(filename, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+        } catch (IOException io) {
+            System.out.printf("%s:creating the spill file error\n", filename);
+            return false;
+        }
+        openStores.add(this);
+        return true;
+    }
+
+    // Writer of a new run of the given name, replaces the run of the same name
+    public TupleWriter writer(String name) {
+        delete(name);
+        Run run = new Run();
+        runs.put(name, run);
+        return new TupleWriter(name, batchsize) {
+            public boolean open() {
+                paged = true;
+                pages = null;
+                outBatch = null;
+                numBatch = 0;
+                numTuple = 0;
+                return true;
+            }
+
+            boolean openPages(int[] types) {
+                run.typeCodes = Tuple.typeCodes(types);
+                pages = new RunPageWriter(name, run, types);
+                return pages.open();
+            }
+        };
+    }
+
+    // Reader of the run of the given name
+    public TupleReader reader(String name) {
+        return new TupleReader(name, batchsize) {
+            public boolean open() {
+                Run run = runs.get(name);
+                if (run == null) {
+                    System.out.printf("%s:no run %s in the spill file\n", filename, name);
+                    return false;
+                }
+                pages = new RunPageReader(name, run);
+                inBatch = null;
+                ahead = null;
+                peekTuple = null;
+                numBatch = 0;
+                numTuple = 0;
+                readCursor = 0;
+                completed = false;
+                return true;
+            }
+        };
+    }
+
+    // Number of pages of the run of the given name
+    public long getNumPages(String name) {
+        Run run = runs.get(name);
+        return (run == null) ? 0 : run.numPages;
+    }
+
+    // Releases the pages of the run, they are reused by later runs
+    public void delete(String name) {
+        Run run = runs.remove(name);
+        if (run != null) {
+            synchronized (this) {
+                freeExtents.addAll(run.extents);
+            }
+        }
+    }
+
+    // First page of a free extent, the spill file grows if no extent is free
+    synchronized long allocateExtent() {
+        if (!freeExtents.isEmpty()) {
+            return freeExtents.remove(freeExtents.size() - 1);
+        }
+        return (numExtents++) * EXTENT_PAGES;
+    }
+
+    // Closes and removes the spill file
+    public boolean close() {
+        openStores.remove(this);
+        runs.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException io) {
+                System.out.printf("%s:closing the spill file error\n", filename);
+            }
+            channel = null;
+        }
+        new File(filename).delete();
+        return true;
+    }
+
+    /**
+     * Writes the pages of a run into its extents instead of a page file
+     */
+    class RunPageWriter extends PageFileWriter {
+        final Run run;
+
+        RunPageWriter(String name, Run run, int[] types) {
+            super(name, types, RunStore.this.pagesize, Math.max(1, batchsize));
+            this.run = run;
+        }
+
+        public boolean open() {
+            page = ByteBuffer.allocate(pagesize);
+            strings = new ArrayList<>(tuplesPerPage);
+            pageTuples = new ArrayList<>(tuplesPerPage);
+            pageBytes = PAGE_HEADER_SIZE;
+            numPage = 0;
+            numTuple = 0;
+            return true;
+        }
+
+        void write(ByteBuffer page, long pageNumber) throws IOException {
+            if (pageNumber >= (long) run.extents.size() * EXTENT_PAGES) {
+                run.extents.add(allocateExtent());
+            }
+            page.clear();
+            long position = run.offsetOf(pageNumber, pagesize);
+            while (page.hasRemaining()) {
+                position += channel.write(page, position);
+            }
+        }
+
+        public boolean close() {
+            if (page == null) {
+                return true;
+            }
+            writePage();
+            boolean written = finishWrites();
+            run.numPages = numPage;
+            run.numTuples = numTuple;
+            page = null;
+            return written;
+        }
+    }
+
+    /**
+     * Reads the pages of a run from its extents with positioned reads
+     */
+    class RunPageReader extends PageFileReader {
+        final Run run;
+
+        RunPageReader(String name, Run run) {
+            super(name);
+            this.run = run;
+            this.pagesize = RunStore.this.pagesize;
+            this.typeCodes = run.typeCodes;
+            this.numTuples = run.numTuples;
+            this.numPages = run.numPages;
+            this.page = ByteBuffer.allocate(pagesize);
+        }
+
+        ByteBuffer nextPageBuffer() {
+            if (numPage >= numPages || page == null) {
+                return null;
+            }
+            page.clear();
+            long position = run.offsetOf(numPage, pagesize);
+            try {
+                while (page.hasRemaining()) {
+                    int read = channel.read(page, position);
+                    if (read < 0) {
+                        return null;
+                    }
+                    position += read;
+                }
+            } catch (IOException io) {
+                System.out.printf("%s:reading the spill file error\n", RunStore.this.filename);
+                System.exit(1);
+            }
+            numPage++;
+            page.flip();
+            return page;
+        }
+
+        public boolean close() {
+            page = null;
+            return true;
+        }
+    }
+}
@@ -90,15 +90,29 @@ public class Schema implements Serializable {
     }
 
     /** To get schema due to result of project operation
-     attrlist is the attirbuted that are projected **/
+     attrlist is the attirbuted that are projected
+     An aggregate of a base attribute has the type of its result,
+     an aggregate already in this schema is kept as it is, and an
+     average is made from the partial sums of its attribute **/
     public Schema subSchema(ArrayList<Attribute> attrlist) {
         ArrayList<Attribute> newVector = new ArrayList<>();
         int newTupleSize = 0;
         for (int i = 0; i < attrlist.size(); ++i) {
             Attribute resAttr = attrlist.get(i);
+            if (resAttr.getAggType() != Attribute.NONE && this.contains(resAttr)) {
+                newVector.add((Attribute) this.getAttribute(this.indexOf(resAttr)).clone());
+                newTupleSize = newTupleSize + 4;
+                continue;
+            }
             int baseIndex = this.indexOf(resAttr.getBaseAttribute());
+            if (baseIndex == -1 && resAttr.getAggType() == Attribute.AVG) {
+                Attribute sum = resAttr.getBaseAttribute();
+                sum.setAggType(Attribute.SUM);
+                baseIndex = this.indexOf(sum);
+            }
             Attribute baseAttr = (Attribute) this.getAttribute(baseIndex).clone();
             baseAttr.setAggType(resAttr.getAggType());
+            baseAttr.setType(baseAttr.getProjectedType());
             newVector.add(baseAttr);
             if (baseAttr.getAggType() == Attribute.NONE) {
                 newTupleSize = newTupleSize + baseAttr.getAttrSize();
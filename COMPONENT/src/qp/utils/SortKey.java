@@ -0,0 +1,107 @@
+/**
+ * Tuple together with its normalized binary sort key
+ **/
+
+package qp.utils;
+
+import java.util.Arrays;
+
+/**
+ * The key columns are encoded into bytes that compare, as unsigned bytes,
+ * in the same order as Tuple.compareTuples orders the tuples:
+ *   INT:    big-endian with the sign bit flipped
+ *   REAL:   big-endian bits of the float, all bits flipped for negative
+ *           values and only the sign bit flipped otherwise
+ *   STRING: big-endian UTF-16 chars, a 0 byte is escaped as 0 0xFF and the
+ *           string ends with 0 0, so a prefix sorts before longer strings
+ * For a descending order every byte is inverted.
+ * The first 8 bytes are kept as a long, so most comparisons are a single
+ * unsigned long comparison and only ties look at the whole key
+ */
+public class SortKey implements Comparable<SortKey> {
+
+    public final Tuple tuple;  // Tuple the key belongs to
+    final long prefix;         // First 8 bytes of the key, zero padded
+    final byte[] key;          // Whole normalized key
+
+    public SortKey(Tuple tuple, int[] index, boolean descending) {
+        this.tuple = tuple;
+        this.key = encode(tuple, index, descending);
+        long p = 0;
+        for (int i = 0; i < 8; ++i) {
+            p = (p << 8) | (i < key.length ? (key[i] & 0xFF) : 0);
+        }
+        this.prefix = p;
+    }
+
+    /**
+     * Normalized key of the given columns of the tuple
+     **/
+    public static byte[] encode(Tuple tuple, int[] index, boolean descending) {
+        int length = 0;
+        for (int col : index) {
+            if (tuple.typeAt(col) == Attribute.STRING) {
+                String value = tuple.getString(col);
+                length += 2 * value.length() + 2;
+                for (int i = 0; i < value.length(); ++i) {
+                    char c = value.charAt(i);
+                    if ((c >>> 8) == 0) length++;
+                    if ((c & 0xFF) == 0) length++;
+                }
+            } else {
+                length += 4;
+            }
+        }
+        byte[] key = new byte[length];
+        int pos = 0;
+        for (int col : index) {
+            int type = tuple.typeAt(col);
+            if (type == Attribute.STRING) {
+                String value = tuple.getString(col);
+                for (int i = 0; i < value.length(); ++i) {
+                    char c = value.charAt(i);
+                    pos = putEscaped(key, pos, (byte) (c >>> 8));
+                    pos = putEscaped(key, pos, (byte) c);
+                }
+                key[pos++] = 0;
+                key[pos++] = 0;
+            } else {
+                int bits;
+                if (type == Attribute.REAL) {
+                    bits = Float.floatToIntBits(tuple.getFloat(col));
+                    bits = (bits < 0) ? ~bits : bits ^ 0x80000000;
+                } else {
+                    bits = tuple.getInt(col) ^ 0x80000000;
+                }
+                key[pos++] = (byte) (bits >>> 24);
+                key[pos++] = (byte) (bits >>> 16);
+                key[pos++] = (byte) (bits >>> 8);
+                key[pos++] = (byte) bits;
+            }
+        }
+        if (descending) {
+            for (int i = 0; i < key.length; ++i) {
+                key[i] = (byte) ~key[i];
+            }
+        }
+        return key;
+    }
+
+    private static int putEscaped(byte[] key, int pos, byte b) {
+        key[pos++] = b;
+        if (b == 0) {
+            key[pos++] = (byte) 0xFF;
+        }
+        return pos;
+    }
+
+    public int compareTo(SortKey other) {
+        if (prefix != other.prefix) {
+            return Long.compareUnsigned(prefix, other.prefix);
+        }
+        if (key.length <= 8 && other.key.length <= 8) {
+            return Integer.compare(key.length, other.key.length);
+        }
+        return Arrays.compareUnsigned(key, other.key);
+    }
+}
@@ -8,25 +8,139 @@ import java.util.*;
 import java.io.*;
 
 /**
- * Tuple - a simple object which holds an ArrayList of data
+ * Tuple - a simple object which holds the data of a row
+ * INT values and the raw bits of REAL values are kept in an int array and
+ * STRING values in a String array, the type of every column is kept in a
+ * byte array that is shared by all the tuples with the same layout
  */
 public class Tuple implements Serializable {
 
-    public ArrayList<Object> _data;
+    public static final byte NULL = 0;  // Type of a column without a value
 
+    byte[] types;      // Attribute type of every column
+    int[] values;      // INT values and raw bits of REAL values
+    String[] strings;  // STRING values, null if there is no STRING column
+
+    public Tuple(byte[] types, int[] values, String[] strings) {
+        this.types = types;
+        this.values = values;
+        this.strings = strings;
+    }
+
+    /**
+     * Builds the tuple from boxed Integer, Float and String values
+     */
     public Tuple(ArrayList<Object> d) {
-        _data = d;
+        int size = d.size();
+        types = new byte[size];
+        values = new int[size];
+        for (int i = 0; i < size; ++i) {
+            Object data = d.get(i);
+            if (data instanceof Integer) {
+                types[i] = Attribute.INT;
+                values[i] = (Integer) data;
+            } else if (data instanceof Float) {
+                types[i] = Attribute.REAL;
+                values[i] = Float.floatToRawIntBits((Float) data);
+            } else if (data instanceof String) {
+                types[i] = Attribute.STRING;
+                if (strings == null) strings = new String[size];
+                strings[i] = (String) data;
+            } else {
+                types[i] = NULL;
+            }
+        }
+    }
+
+    /**
+     * Type codes of the given attribute types, to be shared between tuples
+     */
+    public static byte[] typeCodes(int[] attrTypes) {
+        byte[] codes = new byte[attrTypes.length];
+        for (int i = 0; i < codes.length; ++i) {
+            codes[i] = (byte) attrTypes[i];
+        }
+        return codes;
+    }
+
+    public int size() {
+        return types.length;
+    }
+
+    public int typeAt(int index) {
+        return types[index];
+    }
+
+    public int getInt(int index) {
+        return values[index];
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat(values[index]);
+    }
+
+    public String getString(int index) {
+        return strings == null ? null : strings[index];
     }
 
     /**
-     * Accessor for data
+     * Accessor for data, boxes every value into a new list
      */
     public ArrayList<Object> data() {
-        return _data;
+        ArrayList<Object> d = new ArrayList<>(types.length);
+        for (int i = 0; i < types.length; ++i) {
+            d.add(dataAt(i));
+        }
+        return d;
     }
 
+    /**
+     * Boxed value of the column, kept for callers not using the typed accessors
+     */
     public Object dataAt(int index) {
-        return _data.get(index);
+        switch (types[index]) {
+            case Attribute.INT:
+                return values[index];
+            case Attribute.REAL:
+                return Float.intBitsToFloat(values[index]);
+            case Attribute.STRING:
+                return strings[index];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * New tuple holding the given columns of this tuple
+     */
+    public Tuple project(int[] index) {
+        byte[] newTypes = new byte[index.length];
+        int[] newValues = new int[index.length];
+        String[] newStrings = null;
+        for (int i = 0; i < index.length; ++i) {
+            int j = index[i];
+            newTypes[i] = types[j];
+            newValues[i] = values[j];
+            if (types[j] == Attribute.STRING) {
+                if (newStrings == null) newStrings = new String[index.length];
+                newStrings[i] = strings[j];
+            }
+        }
+        return new Tuple(newTypes, newValues, newStrings);
+    }
+
+    /**
+     * Checks whether the column of this tuple equals the column of the right tuple
+     */
+    public boolean equalsAt(int leftindex, Tuple right, int rightindex) {
+        byte type = types[leftindex];
+        if (type != right.types[rightindex]) {
+            return false;
+        }
+        if (type == Attribute.STRING) {
+            return strings[leftindex].equals(right.strings[rightindex]);
+        }
+        return values[leftindex] == right.values[rightindex];
     }
 
     /**
@@ -34,12 +148,7 @@ public class Tuple implements Serializable {
      * * before performing actual join operation
      **/
     public boolean checkJoin(Tuple right, int leftindex, int rightindex) {
-        Object leftData = dataAt(leftindex);
-        Object rightData = right.dataAt(rightindex);
-        if (leftData.equals(rightData))
-            return true;
-        else
-            return false;
+        return equalsAt(leftindex, right, rightindex);
     }
 
     /**
@@ -50,9 +159,7 @@ public class Tuple implements Serializable {
         if (leftindex.size() != rightindex.size())
             return false;
         for (int i = 0; i < leftindex.size(); ++i) {
-            Object leftData = dataAt(leftindex.get(i));
-            Object rightData = right.dataAt(rightindex.get(i));
-            if (!leftData.equals(rightData)) {
+            if (!equalsAt(leftindex.get(i), right, rightindex.get(i))) {
                 return false;
             }
         }
@@ -63,9 +170,21 @@ public class Tuple implements Serializable {
      * Joining two tuples without duplicate column elimination
      **/
     public Tuple joinWith(Tuple right) {
-        ArrayList<Object> newData = new ArrayList<>(this.data());
-        newData.addAll(right.data());
-        return new Tuple(newData);
+        int leftsize = types.length;
+        int rightsize = right.types.length;
+        byte[] newTypes = new byte[leftsize + rightsize];
+        System.arraycopy(types, 0, newTypes, 0, leftsize);
+        System.arraycopy(right.types, 0, newTypes, leftsize, rightsize);
+        int[] newValues = new int[leftsize + rightsize];
+        System.arraycopy(values, 0, newValues, 0, leftsize);
+        System.arraycopy(right.values, 0, newValues, leftsize, rightsize);
+        String[] newStrings = null;
+        if (strings != null || right.strings != null) {
+            newStrings = new String[leftsize + rightsize];
+            if (strings != null) System.arraycopy(strings, 0, newStrings, 0, leftsize);
+            if (right.strings != null) System.arraycopy(right.strings, 0, newStrings, leftsize, rightsize);
+        }
+        return new Tuple(newTypes, newValues, newStrings);
     }
 
     /**
@@ -93,18 +212,17 @@ public class Tuple implements Serializable {
      * Comparing tuples in different tables, used for join condition checking
      **/
     public static int compareTuples(Tuple left, Tuple right, int leftIndex, int rightIndex) {
-        Object leftdata = left.dataAt(leftIndex);
-        Object rightdata = right.dataAt(rightIndex);
-        if (leftdata instanceof Integer) {
-            return ((Integer) leftdata).compareTo((Integer) rightdata);
-        } else if (leftdata instanceof String) {
-            return ((String) leftdata).compareTo((String) rightdata);
-        } else if (leftdata instanceof Float) {
-            return ((Float) leftdata).compareTo((Float) rightdata);
-        } else {
-            System.out.println("Tuple: Unknown comparision of the tuples");
-            System.exit(1);
-            return 0;
+        switch (left.types[leftIndex]) {
+            case Attribute.INT:
+                return Integer.compare(left.values[leftIndex], right.values[rightIndex]);
+            case Attribute.STRING:
+                return left.strings[leftIndex].compareTo(right.strings[rightIndex]);
+            case Attribute.REAL:
+                return Float.compare(left.getFloat(leftIndex), right.getFloat(rightIndex));
+            default:
+                System.out.println("Tuple: Unknown comparision of the tuples");
+                System.exit(1);
+                return 0;
         }
     }
 
@@ -118,19 +236,22 @@ public class Tuple implements Serializable {
             return 0;
         }
         for (int i = 0; i < leftIndex.size(); ++i) {
-            Object leftdata = left.dataAt(leftIndex.get(i));
-            Object rightdata = right.dataAt(rightIndex.get(i));
-            if (leftdata.equals(rightdata)) continue;
-            if (leftdata instanceof Integer) {
-                return ((Integer) leftdata).compareTo((Integer) rightdata);
-            } else if (leftdata instanceof String) {
-                return ((String) leftdata).compareTo((String) rightdata);
-            } else if (leftdata instanceof Float) {
-                return ((Float) leftdata).compareTo((Float) rightdata);
-            } else {
-                System.out.println("Tuple: Unknown comparision of the tuples");
-                System.exit(1);
-                return 0;
+            int result = compareTuples(left, right, leftIndex.get(i), rightIndex.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Same as above with the indexes already unboxed
+     **/
+    public static int compareTuples(Tuple left, Tuple right, int[] leftIndex, int[] rightIndex) {
+        for (int i = 0; i < leftIndex.length; ++i) {
+            int result = compareTuples(left, right, leftIndex[i], rightIndex[i]);
+            if (result != 0) {
+                return result;
             }
         }
         return 0;
@@ -5,20 +5,27 @@ import java.util.Comparator;
 
 public class TupleComparator implements Comparator<Tuple> {
 
-    private ArrayList<Integer> leftIndex, rightIndex;
+    private int[] leftIndex, rightIndex;
     private boolean reverse = false;
 
     public TupleComparator(ArrayList<Integer> leftIndex, ArrayList<Integer> rightIndex) {
-        this.leftIndex = leftIndex;
-        this.rightIndex = rightIndex;
+        this.leftIndex = toArray(leftIndex);
+        this.rightIndex = toArray(rightIndex);
     }
 
     public TupleComparator(ArrayList<Integer> leftIndex, ArrayList<Integer> rightIndex, boolean reverse) {
-        this.leftIndex = leftIndex;
-        this.rightIndex = rightIndex;
+        this(leftIndex, rightIndex);
         this.reverse = reverse;
     }
 
+    static int[] toArray(ArrayList<Integer> index) {
+        int[] array = new int[index.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = index.get(i);
+        }
+        return array;
+    }
+
     @Override
     public int compare(Tuple o1, Tuple o2) {
         int result = Tuple.compareTuples(o1, o2, leftIndex, rightIndex);
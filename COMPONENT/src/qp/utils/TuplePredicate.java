@@ -0,0 +1,329 @@
+/**
+ * Selection predicate compiled from Conditions once per operator
+ **/
+
+package qp.utils;
+
+import java.util.ArrayList;
+
+/**
+ * The column index, the constant and the comparison of a condition are
+ * resolved when the predicate is compiled, so testing a tuple is a single
+ * call without any schema lookup, parsing or branching on the condition.
+ * INT and REAL comparisons with a constant become ranges, which lets a
+ * conjunction on the same column fuse into a single range check
+ */
+public abstract class TuplePredicate {
+
+    /** Whether the tuple satisfies the predicate **/
+    public abstract boolean test(Tuple tuple);
+
+    /** Narrows the selection vector to the rows satisfying the predicate **/
+    public abstract void select(ColumnBatch columns);
+
+    /**
+     * Compiles a select condition on tuples of the schema
+     **/
+    public static TuplePredicate compile(Condition con, Schema schema) {
+        int index = schema.indexOf(con.getLhs());
+        int datatype = schema.typeOf(con.getLhs());
+        int exprtype = con.getExprType();
+        if (con.getRhs() instanceof Attribute) {
+            return new ColumnCompare(index, exprtype, schema.indexOf((Attribute) con.getRhs()), datatype);
+        } else if (!(con.getRhs() instanceof String)) {
+            System.out.println("Select: Malformed condition");
+            return new Constant(false);
+        }
+        String value = (String) con.getRhs();
+        if (exprtype < Condition.LESSTHAN || exprtype > Condition.NOTEQUAL) {
+            System.out.println("Select: Incorrect condition operator");
+            return new Constant(false);
+        }
+        if (datatype == Attribute.INT) {
+            return compileInt(index, exprtype, Integer.parseInt(value));
+        } else if (datatype == Attribute.REAL) {
+            return compileFloat(index, exprtype, Float.parseFloat(value));
+        } else if (datatype == Attribute.STRING) {
+            if (exprtype == Condition.EQUAL) {
+                return new StringEqual(index, value, true);
+            } else if (exprtype == Condition.NOTEQUAL) {
+                return new StringEqual(index, value, false);
+            }
+            return new StringCompare(index, exprtype, value);
+        }
+        return new Constant(false);
+    }
+
+    /**
+     * Compiles the conjunction of the conditions, conditions
+     * * on the same INT or REAL column are fused into one range
+     **/
+    public static TuplePredicate compile(ArrayList<Condition> conditions, Schema schema) {
+        ArrayList<TuplePredicate> predicates = new ArrayList<>();
+        for (Condition con : conditions) {
+            TuplePredicate next = compile(con, schema);
+            boolean fused = false;
+            for (int i = 0; i < predicates.size() && !fused; ++i) {
+                TuplePredicate both = fuse(predicates.get(i), next);
+                if (both != null) {
+                    predicates.set(i, both);
+                    fused = true;
+                }
+            }
+            if (!fused) {
+                predicates.add(next);
+            }
+        }
+        for (TuplePredicate predicate : predicates) {
+            if (predicate instanceof Constant && !((Constant) predicate).value) {
+                return predicate;
+            }
+        }
+        if (predicates.size() == 1) {
+            return predicates.get(0);
+        }
+        return new And(predicates.toArray(new TuplePredicate[0]));
+    }
+
+    /** Single predicate equivalent to both, null if they cannot be fused **/
+    private static TuplePredicate fuse(TuplePredicate first, TuplePredicate second) {
+        if (first instanceof IntRange && second instanceof IntRange) {
+            IntRange a = (IntRange) first;
+            IntRange b = (IntRange) second;
+            if (a.index == b.index) {
+                int lo = Math.max(a.lo, b.lo);
+                int hi = Math.min(a.hi, b.hi);
+                return (lo <= hi) ? new IntRange(a.index, lo, hi) : new Constant(false);
+            }
+        } else if (first instanceof FloatRange && second instanceof FloatRange) {
+            FloatRange a = (FloatRange) first;
+            FloatRange b = (FloatRange) second;
+            if (a.index == b.index) {
+                float lo = Math.max(a.lo, b.lo);
+                float hi = Math.min(a.hi, b.hi);
+                return (lo <= hi) ? new FloatRange(a.index, lo, hi) : new Constant(false);
+            }
+        }
+        return null;
+    }
+
+    private static TuplePredicate compileInt(int index, int exprtype, int value) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                if (value == Integer.MIN_VALUE) return new Constant(false);
+                return new IntRange(index, Integer.MIN_VALUE, value - 1);
+            case Condition.GREATERTHAN:
+                if (value == Integer.MAX_VALUE) return new Constant(false);
+                return new IntRange(index, value + 1, Integer.MAX_VALUE);
+            case Condition.LTOE:
+                return new IntRange(index, Integer.MIN_VALUE, value);
+            case Condition.GTOE:
+                return new IntRange(index, value, Integer.MAX_VALUE);
+            case Condition.EQUAL:
+                return new IntRange(index, value, value);
+            default:
+                return new IntNotEqual(index, value);
+        }
+    }
+
+    private static TuplePredicate compileFloat(int index, int exprtype, float value) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                if (value == Float.NEGATIVE_INFINITY || Float.isNaN(value)) return new Constant(false);
+                return new FloatRange(index, Float.NEGATIVE_INFINITY, Math.nextDown(value));
+            case Condition.GREATERTHAN:
+                if (value == Float.POSITIVE_INFINITY || Float.isNaN(value)) return new Constant(false);
+                return new FloatRange(index, Math.nextUp(value), Float.POSITIVE_INFINITY);
+            case Condition.LTOE:
+                return new FloatRange(index, Float.NEGATIVE_INFINITY, value);
+            case Condition.GTOE:
+                return new FloatRange(index, value, Float.POSITIVE_INFINITY);
+            case Condition.EQUAL:
+                return new FloatRange(index, value, value);
+            default:
+                return new FloatNotEqual(index, value);
+        }
+    }
+
+    /** lo <= value <= hi on an INT column **/
+    static class IntRange extends TuplePredicate {
+        final int index, lo, hi;
+
+        IntRange(int index, int lo, int hi) {
+            this.index = index;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public boolean test(Tuple tuple) {
+            int v = tuple.getInt(index);
+            return v >= lo && v <= hi;
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectIntRange(index, lo, hi);
+        }
+    }
+
+    static class IntNotEqual extends TuplePredicate {
+        final int index, value;
+
+        IntNotEqual(int index, int value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        public boolean test(Tuple tuple) {
+            return tuple.getInt(index) != value;
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectInt(index, Condition.NOTEQUAL, value);
+        }
+    }
+
+    /** lo <= value <= hi on a REAL column **/
+    static class FloatRange extends TuplePredicate {
+        final int index;
+        final float lo, hi;
+
+        FloatRange(int index, float lo, float hi) {
+            this.index = index;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public boolean test(Tuple tuple) {
+            float v = tuple.getFloat(index);
+            return v >= lo && v <= hi;
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectFloatRange(index, lo, hi);
+        }
+    }
+
+    static class FloatNotEqual extends TuplePredicate {
+        final int index;
+        final float value;
+
+        FloatNotEqual(int index, float value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        public boolean test(Tuple tuple) {
+            return tuple.getFloat(index) != value;
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectFloat(index, Condition.NOTEQUAL, value);
+        }
+    }
+
+    static class StringEqual extends TuplePredicate {
+        final int index;
+        final String value;
+        final boolean equal;  // false for NOTEQUAL
+
+        StringEqual(int index, String value, boolean equal) {
+            this.index = index;
+            this.value = value;
+            this.equal = equal;
+        }
+
+        public boolean test(Tuple tuple) {
+            return value.equals(tuple.getString(index)) == equal;
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectString(index, equal ? Condition.EQUAL : Condition.NOTEQUAL, value);
+        }
+    }
+
+    static class StringCompare extends TuplePredicate {
+        final int index, exprtype;
+        final String value;
+
+        StringCompare(int index, int exprtype, String value) {
+            this.index = index;
+            this.exprtype = exprtype;
+            this.value = value;
+        }
+
+        public boolean test(Tuple tuple) {
+            return ColumnBatch.satisfies(tuple.getString(index).compareTo(value), exprtype);
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectString(index, exprtype, value);
+        }
+    }
+
+    /** Comparison of two columns of the same type **/
+    static class ColumnCompare extends TuplePredicate {
+        final int index, exprtype, otherindex, datatype;
+
+        ColumnCompare(int index, int exprtype, int otherindex, int datatype) {
+            this.index = index;
+            this.exprtype = exprtype;
+            this.otherindex = otherindex;
+            this.datatype = datatype;
+        }
+
+        public boolean test(Tuple tuple) {
+            if (datatype == Attribute.INT) {
+                return ColumnBatch.satisfies(Integer.compare(tuple.getInt(index), tuple.getInt(otherindex)), exprtype);
+            } else if (datatype == Attribute.REAL) {
+                return ColumnBatch.satisfies(tuple.getFloat(index), tuple.getFloat(otherindex), exprtype);
+            }
+            return ColumnBatch.satisfies(tuple.getString(index).compareTo(tuple.getString(otherindex)), exprtype);
+        }
+
+        public void select(ColumnBatch columns) {
+            columns.selectColumns(index, exprtype, otherindex);
+        }
+    }
+
+    static class Constant extends TuplePredicate {
+        final boolean value;
+
+        Constant(boolean value) {
+            this.value = value;
+        }
+
+        public boolean test(Tuple tuple) {
+            return value;
+        }
+
+        public void select(ColumnBatch columns) {
+            if (!value) {
+                columns.selectNone();
+            }
+        }
+    }
+
+    /** Conjunction evaluated in the given order, stops at the first failing predicate **/
+    static class And extends TuplePredicate {
+        final TuplePredicate[] predicates;
+
+        And(TuplePredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        public boolean test(Tuple tuple) {
+            for (TuplePredicate predicate : predicates) {
+                if (!predicate.test(tuple)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void select(ColumnBatch columns) {
+            for (int i = 0; i < predicates.length && columns.getNumSelected() > 0; ++i) {
+                predicates[i].select(columns);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 /**
  * TupleReader is a helper class that allows other operators to read tuples from a file in a Batch by Batch form
+ * Files in the page format of PageFileWriter are read through a PageFileReader (mapped in ReadMode.MMAP)
+ * With setReadAhead() the batches are read ahead by a background thread
  */
 
 package qp.utils;
@@ -21,6 +23,9 @@ public class TupleReader {
     int numTuple = 0;                        // Number of tuples read
     Tuple peekTuple = null;            // The next tuple of the batch (if peeked)
     ObjectInputStream in;                // Input file stream
+    PageFileReader pages;                // Input page file (if written in the page format)
+    int readAhead = 0;                   // Number of batches read ahead, 0 reads synchronously
+    ReadAhead<Batch> ahead;              // Background reader of the batches (if reading ahead)
 
     // filename: Filename of the output file to read from
     // batchsize: Number of tuples per batch
@@ -45,6 +50,12 @@ public class TupleReader {
         return filename;
     }
 
+    // Reads up to the given number of batches ahead on a background thread,
+    // the caller accounts these batches against its buffers
+    public void setReadAhead(int batches) {
+        readAhead = Math.max(0, batches);
+    }
+
     // Returns true if the end of the input file is encountered
     public boolean isEOF() {
         if (completed) return true;
@@ -53,13 +64,23 @@ public class TupleReader {
 
     // Opens the input file and initializes the class for reading
     public boolean open() {
-        try {
-            in = new ObjectInputStream(new FileInputStream(filename));
-        } catch (IOException io) {
-            System.out.printf("%s:reading the temporary file error", filename);
-            return false;
+        pages = null;
+        if (PageFileReader.isPageFile(filename)) {
+            pages = new PageFileReader(filename);
+            if (!pages.open()) {
+                System.out.printf("%s:reading the temporary file error", filename);
+                return false;
+            }
+        } else {
+            try {
+                in = new ObjectInputStream(new FileInputStream(filename));
+            } catch (IOException io) {
+                System.out.printf("%s:reading the temporary file error", filename);
+                return false;
+            }
         }
         inBatch = null;
+        ahead = null;
         numBatch = 0;
         numTuple = 0;
         readCursor = 0;
@@ -67,6 +88,33 @@ public class TupleReader {
         return true;
     }
 
+    // Skips the next n batches of the file, must be called before the first tuple is read
+    // (and so before any batch is read ahead)
+    // Page files skip the pages without reading them, object streams still read the batches
+    public void skipBatches(int n) {
+        if (completed || n <= 0) return;
+        if (pages != null) {
+            pages.skipPages(n);
+            numBatch += n;
+            return;
+        }
+        try {
+            for (int i = 0; i < n; ++i) {
+                in.readObject();
+                numBatch++;
+            }
+        } catch (EOFException e) {
+            completed = true;
+            this.close();
+        } catch (ClassNotFoundException c) {
+            System.out.printf("%s:Some error in deserialization\n", filename);
+            System.exit(1);
+        } catch (IOException io) {
+            System.out.printf("%s:temporary file reading error\n", filename);
+            System.exit(1);
+        }
+    }
+
     // Allows the caller to 'peek' at the next tuple.
     // Returns the next tuple but does not actually removes it from the stream
     // This is lazily evaluated and will only read the next batch from the file if necessary
@@ -77,24 +125,20 @@ public class TupleReader {
 
         // If the next tuple is in the next batch, we have to read from the file
         if (inBatch == null) {
-            try {
-                while (true) {
-                    inBatch = (Batch) in.readObject();
-                    numBatch++;
-                    if (inBatch.size() > 0) break;
-                }
-            } catch (EOFException e) {
+            if (readAhead > 0 && ahead == null) {
+                ahead = new ReadAhead<Batch>(readAhead) {
+                    protected Batch read() {
+                        return readBatch();
+                    }
+                };
+            }
+            inBatch = (ahead != null) ? ahead.next() : readBatch();
+            if (inBatch == null) {
                 // No more batch in the file
                 peekTuple = null;
                 completed = true;
                 this.close();
                 return null;
-            } catch (ClassNotFoundException c) {
-                System.out.printf("%s:Some error in deserialization\n", filename);
-                System.exit(1);
-            } catch (IOException io) {
-                System.out.printf("%s:temporary file reading error\n", filename);
-                System.exit(1);
             }
         }
 
@@ -111,6 +155,37 @@ public class TupleReader {
         return peekTuple;
     }
 
+    // Reads the next non-empty batch of the file, null at the end of the file
+    private Batch readBatch() {
+        if (pages != null) {
+            Batch batch;
+            do {
+                batch = pages.readPage();
+                if (batch == null) {
+                    return null;
+                }
+                numBatch++;
+            } while (batch.size() == 0);
+            return batch;
+        }
+        try {
+            while (true) {
+                Batch batch = (Batch) in.readObject();
+                numBatch++;
+                if (batch.size() > 0) return batch;
+            }
+        } catch (EOFException e) {
+            return null;
+        } catch (ClassNotFoundException c) {
+            System.out.printf("%s:Some error in deserialization\n", filename);
+            System.exit(1);
+        } catch (IOException io) {
+            System.out.printf("%s:temporary file reading error\n", filename);
+            System.exit(1);
+        }
+        return null;
+    }
+
     // Returns the next tuple and advances the stream
     public Tuple next() {
         // Returns the next tuple, already computed by peek()
@@ -130,6 +205,14 @@ public class TupleReader {
         inBatch = null;        // deallocate buffer
         peekTuple = null;
         completed = true;
+        if (ahead != null) {
+            ahead.close();     // the background thread stops before the file is closed
+            ahead = null;
+        }
+        if (pages != null) {
+            pages.close();
+            pages = null;
+        }
         if (in != null) {
             try {
                 in.close();
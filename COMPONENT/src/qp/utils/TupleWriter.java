@@ -1,5 +1,6 @@
 /**
  * TupleWriter is a helper class that allows other operators to write tuples to a file in a Batch by Batch form
+ * In ReadMode.MMAP the file is written in the page format of PageFileWriter so that it can be mapped when read back
  */
 
 package qp.utils;
@@ -17,7 +18,12 @@ public class TupleWriter {
     Batch outBatch;
     int numBatch = 0;                        // Number of batch written
     int numTuple = 0;                        // Number of tuples added
+    boolean startedBatch = false;            // Whether the last tuple added is the first of its batch
     ObjectOutputStream out;            // Output file stream
+    PageFileWriter pages;               // Output page file (ReadMode.MMAP only)
+    boolean paged;                      // Whether the page format is written
+    int writeBehind = 0;                // Pages written on a background thread, 0 writes synchronously
+    WriteBehind<Batch> behind;          // Background writer of the batches (object stream only)
 
     // filename: Filename of the output file to write to
     // batchsize: Number of tuples per batch
@@ -34,6 +40,11 @@ public class TupleWriter {
         return numTuple;
     }
 
+    // Returns true if the last tuple supplied is the first tuple of a batch
+    public boolean startedBatch() {
+        return startedBatch;
+    }
+
     public int getBatchSize() {
         return batchsize;
     }
@@ -42,14 +53,25 @@ public class TupleWriter {
         return filename;
     }
 
+    // Number of full batches that may wait to be written by a background thread,
+    // the caller counts them against its buffers. Write errors are reported by close()
+    public void setWriteBehind(int pages) {
+        writeBehind = Math.max(0, pages);
+    }
+
     // Opens the file and initializes the class for writing
     public boolean open() {
-        try {
-            out = new ObjectOutputStream(new FileOutputStream(filename));
-        } catch (IOException io) {
-            System.out.printf("%s:writing the temporary file error", filename);
-            return false;
+        paged = (ReadMode.getMode() == ReadMode.MMAP);
+        if (!paged) {
+            try {
+                out = new ObjectOutputStream(new FileOutputStream(filename));
+            } catch (IOException io) {
+                System.out.printf("%s:writing the temporary file error", filename);
+                return false;
+            }
         }
+        pages = null;
+        behind = null;
         outBatch = null;
         numBatch = 0;
         numTuple = 0;
@@ -59,18 +81,46 @@ public class TupleWriter {
     // Supplies a tuple to the tuple writer
     // Tuple writer will store the tuples and writes to the file on Batch at a time
     public boolean next(Tuple nextTuple) {
+        if (paged) {
+            if (pages == null) {
+                if (!openPages(nextTuple)) {
+                    System.exit(1);
+                }
+                pages.setWriteBehind(writeBehind);
+            }
+            boolean written = pages.next(nextTuple);
+            ++numTuple;
+            numBatch = (int) pages.getNumPage();
+            startedBatch = (pages.getPageTuples() == 1);
+            return written;
+        }
+        startedBatch = (outBatch == null);
         if (outBatch == null) {
             outBatch = new Batch(batchsize);
         }
         outBatch.add(nextTuple);
         ++numTuple;
         if (outBatch.isFull())
-            writeBatch();        // Immediately writes to file when we have enough tuples to fill a BAtch
+            return writeBatch();        // Immediately writes to file when we have enough tuples to fill a BAtch
         return true;
     }
 
-    // Helper method to write a single batch to the output file
-    private void writeBatch() {
+    // Helper method to write a single batch to the output file, or to hand it to the background writer
+    // Returns false if a batch written behind could not be written
+    private boolean writeBatch() {
+        if (writeBehind > 0) {
+            if (behind == null) {
+                behind = new WriteBehind<Batch>(writeBehind) {
+                    protected void write(Batch batch) throws IOException {
+                        out.writeObject(batch);
+                    }
+                };
+            }
+            boolean written = behind.put(outBatch);
+            outBatch = null;
+            ++numBatch;
+            return written;
+        }
         try {
             out.writeObject(outBatch);
             outBatch = null;        // deallocate output buffer --> saves memory
@@ -80,11 +130,51 @@ public class TupleWriter {
             System.out.println(io);
             System.exit(1);
         }
+        return true;
+    }
+
+    // Opens the page file, the column types are taken from the first tuple
+    private boolean openPages(Tuple first) {
+        int[] types = new int[first.size()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = first.typeAt(i);
+        }
+        return openPages(types);
+    }
+
+    boolean openPages(int[] types) {
+        pages = new PageFileWriter(filename, types, Batch.getPageSize(), batchsize);
+        if (!pages.open()) {
+            System.out.printf("%s:writing the temporary file error", filename);
+            return false;
+        }
+        return true;
     }
 
     // Signals the TupleWriter to finish writing all the tuples to the file
+    // Waits for the batches written behind, returns false if one of them could not be written
     public boolean close() {
+        if (paged) {
+            if (pages == null && !openPages(new int[0])) {
+                System.exit(1);  // Nothing was written, leave an empty page file behind
+            }
+            boolean written = pages.close();
+            numBatch = (int) pages.getNumPage();
+            pages = null;
+            paged = false;
+            return written;
+        }
+        boolean written = true;
         if (outBatch != null) writeBatch();  // Unfilled batch (if any) will be flushed to the file
+        if (behind != null) {
+            IOException io = behind.finish();
+            behind = null;
+            if (io != null) {
+                System.out.printf("%s:writing the temporary file error", filename);
+                System.out.println(io);
+                written = false;
+            }
+        }
         if (out != null) {
             try {
                 out.close();
@@ -95,6 +185,6 @@ public class TupleWriter {
                 System.exit(1);
             }
         }
-        return true;
+        return written;
     }
 }
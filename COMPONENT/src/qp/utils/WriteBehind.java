@@ -0,0 +1,118 @@
+/**
+ * Writes the pages of a sequential output on a background thread
+ *
+ * Full pages are handed to the thread and written while the producer goes
+ * on, so serialization and I/O overlap with the work of the operator.
+ * At most a given number of pages are in flight; they are held in memory,
+ * so the operator has to count them against its buffers. pagesWithin()
+ * caps the depth to the spare buffers.
+ * The first write error stops the thread and is returned by finish().
+ */
+
+package qp.utils;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+public abstract class WriteBehind<T> {
+
+    static int depth = 0;  // Pages in flight of every writer, 0 writes synchronously
+
+    static final Object END = new Object();  // Marks the end of the output in the queue
+
+    final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();  // Pages to be written
+    final Semaphore free;            // Pages that may still be handed over
+    final Thread flusher;            // Background thread writing the pages
+    volatile IOException error;      // First write error of the background thread
+    boolean finished = false;        // Whether finish() was called
+
+    /** Set the number of pages in flight, 0 turns write-behind off **/
+    public static void setDepth(int pages) {
+        depth = Math.max(0, pages);
+    }
+
+    public static int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Number of pages in flight for an operator with the given
+     * * number of buffers to spare, 0 if it should write synchronously
+     **/
+    public static int pagesWithin(int spare) {
+        return Math.max(0, Math.min(depth, spare));
+    }
+
+    // pages: Maximum number of pages handed over and not yet written
+    public WriteBehind(int pages) {
+        free = new Semaphore(Math.max(1, pages));
+        flusher = new Thread(this::run, "WriteBehind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Writes the page on the background thread
+     */
+    protected abstract void write(T page) throws IOException;
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        while (true) {
+            Object page;
+            try {
+                page = queue.take();
+            } catch (InterruptedException e) {
+                error = new IOException("WriteBehind: flusher interrupted");
+                return;
+            }
+            if (page == END) {
+                return;
+            }
+            if (error == null) {
+                try {
+                    write((T) page);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+            }
+            free.release();
+        }
+    }
+
+    // Hands the page over to the background thread, waits while too many pages are in flight
+    // Returns false if an earlier page could not be written
+    public boolean put(T page) {
+        if (error != null) {
+            return false;
+        }
+        try {
+            free.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new IOException("WriteBehind: interrupted while handing over a page");
+            return false;
+        }
+        queue.add(page);
+        return true;
+    }
+
+    // Waits until all the pages are written and stops the background thread,
+    // returns the first write error or null
+    public IOException finish() {
+        if (!finished) {
+            finished = true;
+            queue.add(END);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new IOException("WriteBehind: interrupted while finishing");
+            }
+        }
+        return error;
+    }
+}